@@ -0,0 +1,130 @@
+"use strict";
+
+// Rasterizes pages into OffscreenCanvas and transfers the result back as an ImageBitmap.
+// pdf.js expects a window global when spawning its own worker.
+self.window = self;
+importScripts("pdf.js");
+
+PDFJS.workerSrc = "pdf.worker.js";
+// Font faces and native image decoding need a document, glyphs are drawn as paths instead
+PDFJS.disableFontFace = true;
+PDFJS.disableStream = true;
+PDFJS.disableAutoFetch = true;
+// Built-in CMaps, served from the host's cache
+PDFJS.cMapUrl = "https://localhost/cmaps/";
+PDFJS.cMapPacked = true;
+
+const canvasFactory = {
+    create: function(width, height) {
+        const canvas = new OffscreenCanvas(width, height);
+        return {
+            canvas: canvas,
+            context: canvas.getContext("2d")
+        };
+    },
+    reset: function(canvasAndContext, width, height) {
+        canvasAndContext.canvas.width = width;
+        canvasAndContext.canvas.height = height;
+    },
+    destroy: function(canvasAndContext) {
+        canvasAndContext.canvas.width = 0;
+        canvasAndContext.canvas.height = 0;
+        canvasAndContext.canvas = null;
+        canvasAndContext.context = null;
+    }
+};
+
+let pdfDoc = null;
+const renderTasks = new Map();
+
+function render(message) {
+    pdfDoc.then(function(doc) {
+        return doc.getPage(message.pageNumber);
+    }).then(function(page) {
+        if (!renderTasks.has(message.id)) {
+            throw new Error("cancelled");
+        }
+        const viewport = page.getViewport(message.scale);
+        // Rounded the same way as the viewer's page canvases
+        const canvas = new OffscreenCanvas(Math.floor(viewport.width * message.ratio),
+            Math.floor(viewport.height * message.ratio));
+        const ctx = canvas.getContext("2d");
+        ctx.scale(message.ratio, message.ratio);
+        const task = page.render({
+            canvasContext: ctx,
+            viewport: viewport,
+            canvasFactory: canvasFactory
+        });
+        renderTasks.set(message.id, task);
+        return task.then(function() {
+            return canvas.transferToImageBitmap();
+        });
+    }).then(function(bitmap) {
+        const cancelled = !renderTasks.has(message.id);
+        renderTasks.delete(message.id);
+        if (cancelled) {
+            bitmap.close();
+            postMessage({type: "cancelled", id: message.id});
+        } else {
+            postMessage({type: "rendered", id: message.id, bitmap: bitmap}, [bitmap]);
+        }
+    }).catch(function(error) {
+        const cancelled = !renderTasks.has(message.id);
+        renderTasks.delete(message.id);
+        postMessage({
+            type: cancelled ? "cancelled" : "failed",
+            id: message.id,
+            error: String(error)
+        });
+    });
+}
+
+function closeDocument() {
+    for (const task of renderTasks.values()) {
+        if (task) {
+            task.cancel();
+        }
+    }
+    renderTasks.clear();
+    if (pdfDoc !== null) {
+        pdfDoc.destroy();
+        pdfDoc = null;
+    }
+}
+
+onmessage = function(event) {
+    const message = event.data;
+    switch (message.type) {
+        case "open":
+            closeDocument();
+            pdfDoc = PDFJS.getDocument({
+                url: message.url,
+                rangeChunkSize: message.rangeChunkSize,
+                nativeImageDecoderSupport: "none"
+            });
+            break;
+        case "close":
+            closeDocument();
+            break;
+        case "cleanup":
+            // Cleaning up while a render is running would drop fonts it still needs
+            if (pdfDoc !== null && renderTasks.size === 0) {
+                pdfDoc.then(function(doc) {
+                    doc.cleanup();
+                });
+            }
+            break;
+        case "render":
+            renderTasks.set(message.id, null);
+            render(message);
+            break;
+        case "cancel": {
+            const task = renderTasks.get(message.id);
+            renderTasks.delete(message.id);
+            if (task) {
+                task.cancel();
+            }
+            break;
+        }
+    }
+};
@@ -5,9 +5,134 @@ let pageRendering = false;
 let renderPending = false;
 let canvas = document.getElementById('content');
 const textLayerDiv = document.getElementById("text");
-const zoomLevels = [50, 75, 100, 125, 150];
 let renderTask = null;
-let textLayerRenderTask = null;
+let textLayer = null;
+
+// Text layers are only built from the text content on selection intent, while searching or
+// once a page has been looked at for a while, most pages are flipped past without one
+const maxCachedTextContents = 8;
+const textContents = new Map();
+const pendingTextLayers = new Set();
+// A touch held this long without moving may turn into a long-press selection
+const selectionIntentDelay = 150;
+const selectionIntentSlop = 10;
+let selectionIntent = null;
+// Time without new pages being shown before pending text layers are built at idle priority
+const textLayerIdleDelay = 1000;
+let textLayerIdleTimer = null;
+let textLayerIdleCallback = null;
+
+// Pages on either side of the current one to pre-render once it has finished
+const prefetchDepth = 1;
+// Upper bound on pre-rendered canvases kept around, oldest are dropped first
+const maxPrefetchedPages = 4;
+const prefetchedPages = new Map();
+let prefetchQueue = [];
+const prefetchTasks = new Set();
+let prefetchCallback = null;
+
+const tilesDiv = document.getElementById("tiles");
+// Pages whose canvas would exceed this many device pixels are rendered in tiles
+const maxCanvasPixels = 4096 * 4096;
+// Scale of the quick first pass shown while the full resolution render is running
+const previewScale = 0.25;
+// Tile edge length in device pixels
+const tileSize = 1024;
+let tiledPage = null;
+
+// Viewer state pushed by the host over the message port, newer versions replace older ones
+let viewerState = {
+    version: 0,
+    render: false,
+    page: 1,
+    zoom: 1,
+    continuous: false,
+    searchQuery: "",
+    // What the host already has for the open document
+    searchIndexed: false,
+    metadataLoaded: false,
+    pageIndexLoaded: false
+};
+let hostPort = null;
+let hostOutbox = [];
+// Page cache lookups waiting for the host's reply, by request id
+let nextCacheRequestId = 0;
+const cacheRequests = new Map();
+
+// Worker threads rasterizing into OffscreenCanvas, null when unavailable.
+//
+// pdf.js 1.9 can't share a parsed document between threads, so each render worker opens the
+// document with its own pdf.worker.js: every worker is another parse, another set of font and
+// image caches and another stream of range requests on top of the main thread's. Rendering off
+// the main thread keeps scrolling smooth, but that only pays off with cores and memory to
+// spare, so low end devices render on the main thread and only large ones get a second worker.
+const renderWorkerCount = (function() {
+    const cores = navigator.hardwareConcurrency || 2;
+    // Gigabytes, rounded to a power of two
+    const memory = navigator.deviceMemory || 2;
+    if (cores < 4 || memory < 2) {
+        return 0;
+    }
+    return cores >= 8 && memory >= 4 ? 2 : 1;
+})();
+let renderWorkers = null;
+let nextRenderJobId = 0;
+const renderJobs = new Map();
+
+// Pages of extracted text handed to the search index per bridge call
+const searchBatchSize = 16;
+// Extracting the text of every page reads the whole document, so it only starts once the
+// host asks for it with the search panel
+let searchIndexRequested = false;
+let searchIndexDoc = null;
+// Pages whose geometry is looked up per idle callback while building the page index
+const pageIndexBatchSize = 32;
+// Width, height and rotation of each page at 100% from the page index, three floats per
+// page, null until the host sends the one it has for the document or it has been built
+let pageGeometry = null;
+// Thumbnails requested by the host in the order it wants them, rendered one at a time and
+// only while no page render is running
+let thumbnailQueue = [];
+let thumbnailWidth = 0;
+let thumbnailCallback = null;
+let thumbnailTask = null;
+
+// Pinch zoom previews by scaling what has already been rendered with a transform, the page
+// is only rendered again at the final zoom once no gesture has started for a moment
+const minZoom = 0.5;
+const maxZoom = 4;
+const zoomSettleDelay = 250;
+let pinch = null;
+let pinchScale = 1;
+let pinchOriginX = 0;
+let pinchOriginY = 0;
+let zoomSettleTimer = null;
+// Scroll position keeping the pinch origin in place once the new zoom has been laid out
+let pendingScroll = null;
+
+// Estimated bytes of canvas backing stores to stay within. Pages that would take up too much
+// of it are tiled and pre-rendered pages are dropped to make room. Set by the host from the
+// memory class and lowered under memory pressure until the next document is opened.
+let fullSurfaceBudget = 256 * 1024 * 1024;
+let surfaceBudget = fullSurfaceBudget;
+// pdf.js cleanup drops fonts shared between pages, so it waits until nothing is rendering
+let documentCleanupPending = false;
+
+// Document metadata extraction has been started for, it waits for the first painted page
+let metadataDoc = null;
+
+const pagesDiv = document.getElementById("pages");
+// Screens above and below the visible area that keep their rendered pages, none while
+// memory is tight
+const defaultContinuousBuffer = 1;
+let continuousBuffer = defaultContinuousBuffer;
+const maxPooledCanvases = 4;
+const canvasPool = [];
+let continuousLayout = null;
+let scrollUpdatePending = false;
+// The scroll offset is reported to the host for the saved reading position once it settles
+const scrollReportDelay = 500;
+let scrollReportTimer = null;
 
 function maybeRenderNextPage() {
     if (renderPending) {
@@ -19,86 +144,1843 @@ function maybeRenderNextPage() {
     return false;
 }
 
+function decodeBase64(data) {
+    const binary = atob(data);
+    const bytes = new Uint8Array(binary.length);
+    for (let i = 0; i < binary.length; i++) {
+        bytes[i] = binary.charCodeAt(i);
+    }
+    return bytes;
+}
+
+function paintCachedPage(ctx, data, viewport) {
+    return new Promise(function(resolve, reject) {
+        const url = URL.createObjectURL(new Blob([decodeBase64(data)], {type: "image/png"}));
+        const image = new Image();
+        image.onload = function() {
+            ctx.drawImage(image, 0, 0, viewport.width, viewport.height);
+            URL.revokeObjectURL(url);
+            resolve();
+        };
+        image.onerror = function() {
+            URL.revokeObjectURL(url);
+            reject();
+        };
+        image.src = url;
+    });
+}
+
+// Resolves to the canvas contents as a Base64 encoded PNG
+function encodeCanvas(sourceCanvas) {
+    return new Promise(function(resolve) {
+        sourceCanvas.toBlob(function(blob) {
+            const reader = new FileReader();
+            reader.onload = function() {
+                const result = reader.result;
+                resolve(result.substring(result.indexOf(",") + 1));
+            };
+            reader.readAsDataURL(blob);
+        }, "image/png");
+    });
+}
+
+// Only stored while the document the page was rendered from is still open, so the host
+// doesn't file it under the hash of the next one
+function storeCachedPage(doc, renderedCanvas, pageNumber, zoom, ratio) {
+    encodeCanvas(renderedCanvas).then(function(data) {
+        if (pdfDoc !== doc) {
+            return;
+        }
+        postToHost({
+            type: "storeCachedPage",
+            page: pageNumber,
+            zoom: zoom,
+            ratio: ratio,
+            data: data
+        });
+    });
+}
+
+function createPageCanvas(viewport, ratio) {
+    const pageCanvas = document.createElement("canvas");
+    // Rounded the same way as the render workers' canvases, so their bitmaps fit exactly
+    pageCanvas.height = Math.floor(viewport.height * ratio);
+    pageCanvas.width = Math.floor(viewport.width * ratio);
+    pageCanvas.style.height = viewport.height + "px";
+    pageCanvas.style.width = viewport.width + "px";
+    return pageCanvas;
+}
+
+// Resolves to the Base64 encoded page from the host's page cache, null when it has none or
+// the document is closed before the host replies
+function getCachedPage(pageNumber, zoom, ratio) {
+    return new Promise(function(resolve) {
+        const requestId = nextCacheRequestId++;
+        cacheRequests.set(requestId, resolve);
+        postToHost({type: "getCachedPage", requestId: requestId, page: pageNumber, zoom: zoom, ratio: ratio});
+    });
+}
+
+function onCachedPage(requestId, data) {
+    const resolve = cacheRequests.get(requestId);
+    if (resolve !== undefined) {
+        cacheRequests.delete(requestId);
+        resolve(data);
+    }
+}
+
+// The host drops lookups for a document it has moved on from
+function abandonCacheRequests() {
+    for (const resolve of cacheRequests.values()) {
+        resolve(null);
+    }
+    cacheRequests.clear();
+}
+
+function renderCancelled() {
+    const error = new Error("render superseded");
+    error.cancelled = true;
+    return error;
+}
+
+// Draws a page onto a freshly sized canvas, from the page cache when possible
+function drawPage(page, pageCanvas, viewport, pageNumber, zoom, ratio) {
+    const task = {
+        inner: null,
+        cancelled: false,
+        cancel: function() {
+            this.cancelled = true;
+            if (this.inner !== null) {
+                this.inner.cancel();
+            }
+        }
+    };
+    const promise = getCachedPage(pageNumber, zoom, ratio).then(function(cached) {
+        if (task.cancelled) {
+            throw renderCancelled();
+        }
+        if (cached) {
+            const ctx = pageCanvas.getContext("2d");
+            ctx.scale(ratio, ratio);
+            return paintCachedPage(ctx, cached, viewport);
+        }
+        const drawing = rasterizePage(page, pageCanvas, viewport, pageNumber, zoom, ratio);
+        task.inner = drawing.task;
+        return drawing.promise;
+    });
+    return {task: task, promise: promise};
+}
+
+function startRenderWorkers() {
+    if (renderWorkerCount === 0 || typeof OffscreenCanvas === "undefined" ||
+            typeof createImageBitmap === "undefined") {
+        return;
+    }
+    renderWorkers = [];
+    for (let i = 0; i < renderWorkerCount; i++) {
+        let worker;
+        try {
+            worker = new Worker("renderer.js");
+        } catch (error) {
+            stopRenderWorkers();
+            return;
+        }
+        worker.pending = 0;
+        worker.onmessage = onRenderWorkerMessage;
+        worker.onerror = stopRenderWorkers;
+        renderWorkers.push(worker);
+    }
+}
+
+function postToRenderWorkers(message) {
+    if (renderWorkers === null) {
+        return;
+    }
+    for (const worker of renderWorkers) {
+        worker.postMessage(message);
+    }
+}
+
+function stopRenderWorkers() {
+    if (renderWorkers === null) {
+        return;
+    }
+    for (const worker of renderWorkers) {
+        worker.terminate();
+    }
+    renderWorkers = null;
+    for (const job of renderJobs.values()) {
+        job.reject(new Error("render workers stopped"));
+    }
+    renderJobs.clear();
+}
+
+function onRenderWorkerMessage(event) {
+    const message = event.data;
+    const job = renderJobs.get(message.id);
+    if (job === undefined) {
+        if (message.bitmap) {
+            message.bitmap.close();
+        }
+        return;
+    }
+    renderJobs.delete(message.id);
+    job.worker.pending--;
+    if (message.type === "rendered") {
+        job.resolve(message.bitmap);
+    } else {
+        const error = new Error(message.error || "render cancelled");
+        error.cancelled = message.type === "cancelled";
+        job.reject(error);
+    }
+}
+
+// Renders a page in the least busy worker, returning a cancellable task for an ImageBitmap
+function renderInWorker(pageNumber, scale, ratio) {
+    let worker = renderWorkers[0];
+    for (const candidate of renderWorkers) {
+        if (candidate.pending < worker.pending) {
+            worker = candidate;
+        }
+    }
+    const id = nextRenderJobId++;
+    const job = {worker: worker};
+    job.promise = new Promise(function(resolve, reject) {
+        job.resolve = resolve;
+        job.reject = reject;
+    });
+    renderJobs.set(id, job);
+    worker.pending++;
+    worker.postMessage({type: "render", id: id, pageNumber: pageNumber, scale: scale, ratio: ratio});
+    return {
+        promise: job.promise,
+        cancel: function() {
+            if (renderJobs.has(id)) {
+                worker.postMessage({type: "cancel", id: id});
+            }
+        }
+    };
+}
+
+function rasterizePage(page, pageCanvas, viewport, pageNumber, zoom, ratio) {
+    const doc = pdfDoc;
+    if (renderWorkers !== null) {
+        return rasterizePageInWorker(page, pageCanvas, viewport, pageNumber, zoom, ratio);
+    }
+    const ctx = pageCanvas.getContext("2d");
+    ctx.scale(ratio, ratio);
+    const task = page.render({
+        canvasContext: ctx,
+        viewport: viewport
+    });
+    return {
+        task: task,
+        promise: task.then(function() {
+            storeCachedPage(doc, pageCanvas, pageNumber, zoom, ratio);
+        })
+    };
+}
+
+// Falls back to rendering on the main thread if the workers turn out not to work
+function rasterizePageInWorker(page, pageCanvas, viewport, pageNumber, zoom, ratio) {
+    const doc = pdfDoc;
+    const task = {
+        inner: renderInWorker(pageNumber, viewport.scale, ratio),
+        cancel: function() {
+            this.inner.cancel();
+        }
+    };
+    const promise = task.inner.promise.then(function(bitmap) {
+        pageCanvas.getContext("2d").drawImage(bitmap, 0, 0);
+        bitmap.close();
+        storeCachedPage(doc, pageCanvas, pageNumber, zoom, ratio);
+    }, function(error) {
+        if (error.cancelled) {
+            throw error;
+        }
+        stopRenderWorkers();
+        const fallback = rasterizePage(page, pageCanvas, viewport, pageNumber, zoom, ratio);
+        task.inner = fallback.task;
+        return fallback.promise;
+    });
+    return {
+        task: task,
+        promise: promise
+    };
+}
+
+function getPrefetchKey(pageNumber, zoom, ratio) {
+    return pageNumber + ":" + zoom + ":" + ratio;
+}
+
+function cancelPrefetch() {
+    prefetchQueue = [];
+    if (prefetchCallback !== null) {
+        cancelIdleCallback(prefetchCallback);
+        prefetchCallback = null;
+    }
+    for (const task of prefetchTasks) {
+        task.cancel();
+    }
+    prefetchTasks.clear();
+}
+
+function schedulePrefetch(pageNumber, zoom, ratio) {
+    cancelPrefetch();
+    if (pdfDoc === null || continuousLayout !== null) {
+        return;
+    }
+    for (let i = 1; i <= prefetchDepth; i++) {
+        for (const candidate of [pageNumber + i, pageNumber - i]) {
+            if (candidate >= 1 && candidate <= pdfDoc.numPages &&
+                    !prefetchedPages.has(getPrefetchKey(candidate, zoom, ratio))) {
+                prefetchQueue.push(candidate);
+            }
+        }
+    }
+    prefetchNextPage(zoom, ratio);
+}
+
+// Pre-renders queued pages, several at a time when render workers are available
+function prefetchNextPage(zoom, ratio) {
+    const concurrency = renderWorkers !== null ? renderWorkers.length : 1;
+    if (prefetchQueue.length === 0 || prefetchCallback !== null || prefetchTasks.size >= concurrency) {
+        return;
+    }
+    prefetchCallback = requestIdleCallback(function() {
+        prefetchCallback = null;
+        const queue = prefetchQueue;
+        const pageNumber = queue.shift();
+        const prefetchTask = {
+            task: null,
+            cancel: function() {
+                if (this.task !== null) {
+                    this.task.cancel();
+                }
+            }
+        };
+        prefetchTasks.add(prefetchTask);
+
+        function finishPrefetch() {
+            prefetchTasks.delete(prefetchTask);
+            if (queue === prefetchQueue) {
+                prefetchNextPage(zoom, ratio);
+            }
+        }
+
+        pdfDoc.getPage(pageNumber).then(function(page) {
+            if (queue !== prefetchQueue) {
+                finishPrefetch();
+                return;
+            }
+            const viewport = page.getViewport(zoom);
+            if (useTiles(viewport, ratio)) {
+                finishPrefetch();
+                return;
+            }
+            // Pre-rendering is the first thing to go when surfaces are tight
+            if (getSurfaceBytes() + getCanvasBytes(viewport, ratio) > surfaceBudget) {
+                finishPrefetch();
+                return;
+            }
+            const pageCanvas = createPageCanvas(viewport, ratio);
+            const drawing = drawPage(page, pageCanvas, viewport, pageNumber, zoom, ratio);
+            prefetchTask.task = drawing.task;
+            drawing.promise.then(function() {
+                if (queue === prefetchQueue) {
+                    prefetchedPages.set(getPrefetchKey(pageNumber, zoom, ratio), pageCanvas);
+                    while (prefetchedPages.size > maxPrefetchedPages) {
+                        prefetchedPages.delete(prefetchedPages.keys().next().value);
+                    }
+                }
+                finishPrefetch();
+            }).catch(finishPrefetch);
+        }, finishPrefetch);
+        prefetchNextPage(zoom, ratio);
+    });
+}
+
+function getCanvasBytes(viewport, ratio) {
+    return Math.ceil(viewport.width * ratio) * Math.ceil(viewport.height * ratio) * 4;
+}
+
+function useTiles(viewport, ratio) {
+    return viewport.width * viewport.height * ratio * ratio > maxCanvasPixels ||
+        getCanvasBytes(viewport, ratio) > surfaceBudget / 2;
+}
+
+function getSurfaceBytes() {
+    let bytes = canvas.width * canvas.height * 4;
+    for (const pageCanvas of prefetchedPages.values()) {
+        bytes += pageCanvas.width * pageCanvas.height * 4;
+    }
+    if (tiledPage !== null) {
+        for (const tile of tiledPage.tiles.values()) {
+            bytes += tile.width * tile.height * 4;
+        }
+    }
+    if (continuousLayout !== null) {
+        for (const view of continuousLayout.activeViews) {
+            if (view.canvas !== null) {
+                bytes += view.canvas.width * view.canvas.height * 4;
+            }
+        }
+    }
+    return bytes;
+}
+
+// Drops pre-rendered pages, oldest first, until a new surface of the given size fits
+function reclaimSurfaces(bytes) {
+    for (const [key, pageCanvas] of prefetchedPages) {
+        if (getSurfaceBytes() + bytes <= surfaceBudget) {
+            return;
+        }
+        prefetchedPages.delete(key);
+        releaseCanvas(pageCanvas);
+    }
+}
+
+// Levels match MemoryGovernor: 1 only stops background work, 2 also drops surfaces that
+// aren't on screen, 3 also releases parsed document state and 4 keeps only what the current
+// page needs
+function onTrimMemory(level) {
+    cancelPrefetch();
+    if (level < 2) {
+        // Prefetching starts over with the next render
+        return;
+    }
+    for (const pageCanvas of prefetchedPages.values()) {
+        releaseCanvas(pageCanvas);
+    }
+    prefetchedPages.clear();
+    if (tiledPage !== null) {
+        for (const [key, tile] of Array.from(tiledPage.tiles)) {
+            if (tile.parentNode !== tilesDiv) {
+                tiledPage.tiles.delete(key);
+                releaseCanvas(tile);
+            }
+        }
+    }
+    canvasPool.length = 0;
+    textContents.clear();
+    surfaceBudget = Math.min(surfaceBudget, fullSurfaceBudget * (5 - Math.min(level, 4)) / 4);
+
+    if (level >= 3) {
+        continuousBuffer = 0;
+        updateVisiblePages();
+        pauseThumbnails();
+        postToRenderWorkers({type: "cleanup"});
+        documentCleanupPending = true;
+        maybeCleanupDocument();
+    }
+    if (level >= 4) {
+        // Each render worker holds a parsed copy of the document, rendering falls back to
+        // the main thread
+        thumbnailQueue = [];
+        stopRenderWorkers();
+    }
+    if (level < 4) {
+        scheduleThumbnail();
+    }
+}
+
+function isRendering() {
+    if (pageRendering || prefetchTasks.size > 0 || thumbnailTask !== null ||
+            (tiledPage !== null && tiledPage.task !== null)) {
+        return true;
+    }
+    if (continuousLayout !== null) {
+        for (const view of continuousLayout.activeViews) {
+            if (view.renderTask !== null) {
+                return true;
+            }
+        }
+    }
+    return false;
+}
+
+function maybeCleanupDocument() {
+    if (documentCleanupPending && pdfDoc !== null && !isRendering()) {
+        documentCleanupPending = false;
+        pdfDoc.cleanup();
+    }
+}
+
+function cancelTileRendering() {
+    if (tiledPage === null) {
+        return;
+    }
+    tiledPage.generation++;
+    if (tiledPage.task !== null) {
+        tiledPage.task.cancel();
+        tiledPage.task = null;
+    }
+}
+
+function clearTiles() {
+    if (tiledPage === null) {
+        return;
+    }
+    cancelTileRendering();
+    for (const tile of tiledPage.tiles.values()) {
+        releaseCanvas(tile);
+    }
+    tiledPage = null;
+    tilesDiv.style.width = "";
+    tilesDiv.style.height = "";
+    document.body.classList.remove("tiled");
+}
+
+function showTiledPage(page, viewport, pageNumber, zoom, ratio) {
+    if (tiledPage === null || tiledPage.pageNumber !== pageNumber || tiledPage.ratio !== ratio) {
+        clearTiles();
+        document.body.classList.add("tiled");
+        tiledPage = {
+            page: page,
+            pageNumber: pageNumber,
+            ratio: ratio,
+            tiles: new Map(),
+            generation: 0,
+            task: null
+        };
+    } else {
+        cancelTileRendering();
+    }
+    tiledPage.viewport = viewport;
+    tiledPage.zoom = zoom;
+    tilesDiv.style.width = viewport.width + "px";
+    tilesDiv.style.height = viewport.height + "px";
+
+    // Tiles of other zoom levels stay cached but detached
+    for (const [key, tile] of tiledPage.tiles) {
+        if (!key.startsWith(zoom + ":")) {
+            tile.remove();
+        }
+    }
+    return updateVisibleTiles();
+}
+
+function createTile(t, col, row) {
+    const tile = acquireCanvas();
+    const width = Math.min(tileSize, Math.ceil(t.viewport.width * t.ratio) - col * tileSize);
+    const height = Math.min(tileSize, Math.ceil(t.viewport.height * t.ratio) - row * tileSize);
+    tile.width = width;
+    tile.height = height;
+    tile.style.left = col * tileSize / t.ratio + "px";
+    tile.style.top = row * tileSize / t.ratio + "px";
+    tile.style.width = width / t.ratio + "px";
+    tile.style.height = height / t.ratio + "px";
+    return tile;
+}
+
+// Renders the tiles intersecting the visible area, resolving once they are all drawn or
+// the pass has been superseded
+function updateVisibleTiles() {
+    const t = tiledPage;
+    if (t === null) {
+        return Promise.resolve();
+    }
+    cancelTileRendering();
+    const generation = t.generation;
+    const ratio = t.ratio;
+    const maxX = Math.ceil(t.viewport.width * ratio);
+    const maxY = Math.ceil(t.viewport.height * ratio);
+    const left = Math.max(0, (window.scrollX - tilesDiv.offsetLeft) * ratio);
+    const top = Math.max(0, (window.scrollY - tilesDiv.offsetTop) * ratio);
+    const right = Math.min(maxX, left + window.innerWidth * ratio);
+    const bottom = Math.min(maxY, top + window.innerHeight * ratio);
+
+    const visible = new Set();
+    const pending = [];
+    for (let row = Math.floor(top / tileSize); row * tileSize < bottom; row++) {
+        for (let col = Math.floor(left / tileSize); col * tileSize < right; col++) {
+            const key = t.zoom + ":" + col + ":" + row;
+            visible.add(key);
+            const tile = t.tiles.get(key);
+            if (tile !== undefined) {
+                // Refresh the LRU position
+                t.tiles.delete(key);
+                t.tiles.set(key, tile);
+                if (tile.parentNode !== tilesDiv) {
+                    tilesDiv.appendChild(tile);
+                }
+            } else {
+                pending.push({key: key, col: col, row: row});
+            }
+        }
+    }
+
+    // Keep about two screens worth of tiles, dropping the least recently shown first
+    const maxTiles = 2 * (Math.ceil(window.innerWidth * ratio / tileSize) + 1) *
+        (Math.ceil(window.innerHeight * ratio / tileSize) + 1);
+    for (const [key, tile] of t.tiles) {
+        if (t.tiles.size + pending.length <= maxTiles) {
+            break;
+        }
+        if (!visible.has(key)) {
+            t.tiles.delete(key);
+            releaseCanvas(tile);
+        }
+    }
+
+    function renderNextTile() {
+        if (generation !== t.generation || pending.length === 0) {
+            return Promise.resolve();
+        }
+        const next = pending.shift();
+        const tile = createTile(t, next.col, next.row);
+        t.task = t.page.render({
+            canvasContext: tile.getContext("2d"),
+            viewport: t.viewport,
+            transform: [ratio, 0, 0, ratio, -next.col * tileSize, -next.row * tileSize]
+        });
+        return t.task.then(function() {
+            t.task = null;
+            t.tiles.set(next.key, tile);
+            tilesDiv.appendChild(tile);
+            return renderNextTile();
+        }, function() {
+            releaseCanvas(tile);
+        });
+    }
+    return renderNextTile();
+}
+
+function highlightSearchMatches(container) {
+    const words = viewerState.searchQuery.split(/[^\p{L}\p{N}]+/u).filter(function(word) {
+        return word.length > 0;
+    });
+    if (words.length === 0) {
+        return;
+    }
+    const pattern = new RegExp(words.map(function(word) {
+        return word.replace(/[.*+?^${}()|[\]\\]/g, "\\$&");
+    }).join("|"), "giu");
+
+    for (const div of container.children) {
+        const text = div.textContent;
+        pattern.lastIndex = 0;
+        if (!pattern.test(text)) {
+            continue;
+        }
+        pattern.lastIndex = 0;
+        const fragment = document.createDocumentFragment();
+        let offset = 0;
+        let match;
+        while ((match = pattern.exec(text)) !== null) {
+            fragment.appendChild(document.createTextNode(text.substring(offset, match.index)));
+            const span = document.createElement("span");
+            span.className = "highlight";
+            span.textContent = match[0];
+            fragment.appendChild(span);
+            offset = match.index + match[0].length;
+        }
+        fragment.appendChild(document.createTextNode(text.substring(offset)));
+        div.textContent = "";
+        div.appendChild(fragment);
+    }
+}
+
+// Text content of a page, shared between the last few pages shown
+function getTextContent(page) {
+    const pageNumber = page.pageNumber;
+    let textContent = textContents.get(pageNumber);
+    if (textContent === undefined) {
+        textContent = page.getTextContent();
+        textContent.catch(function() {
+            if (textContents.get(pageNumber) === textContent) {
+                textContents.delete(pageNumber);
+            }
+        });
+    } else {
+        textContents.delete(pageNumber);
+    }
+    textContents.set(pageNumber, textContent);
+    if (textContents.size > maxCachedTextContents) {
+        textContents.delete(textContents.keys().next().value);
+    }
+    return textContent;
+}
+
+// The text layer of a page goes into container once something needs it
+function deferTextLayer(page, viewport, container) {
+    const layer = {
+        page: page,
+        viewport: viewport,
+        container: container,
+        task: null,
+        cancelled: false
+    };
+    pendingTextLayers.add(layer);
+    if (viewerState.searchQuery.length > 0) {
+        buildTextLayer(layer);
+    } else {
+        scheduleIdleTextLayers();
+    }
+    return layer;
+}
+
+function buildTextLayer(layer) {
+    if (!pendingTextLayers.delete(layer)) {
+        return Promise.resolve();
+    }
+    const start = performance.now();
+    return getTextContent(layer.page).then(function(textContent) {
+        if (layer.cancelled) {
+            return;
+        }
+        const fragment = document.createDocumentFragment();
+        layer.task = PDFJS.renderTextLayer({
+            textContent: textContent,
+            container: fragment,
+            viewport: layer.viewport
+        });
+        return layer.task.promise.then(function() {
+            layer.task = null;
+            if (!layer.cancelled) {
+                highlightSearchMatches(fragment);
+                layer.container.appendChild(fragment);
+                reportStage("textLayer", start);
+            }
+        });
+    }).catch(function(error) {
+        layer.task = null;
+        if (!layer.cancelled) {
+            reportError(error);
+        }
+    });
+}
+
+function cancelTextLayer(layer) {
+    if (layer === null) {
+        return;
+    }
+    layer.cancelled = true;
+    pendingTextLayers.delete(layer);
+    if (layer.task !== null) {
+        layer.task.cancel();
+        layer.task = null;
+    }
+}
+
+function buildPendingTextLayers() {
+    for (const layer of Array.from(pendingTextLayers)) {
+        buildTextLayer(layer);
+    }
+}
+
+// Restarted whenever another page is shown so nothing is built while flipping or scrolling
+function scheduleIdleTextLayers() {
+    cancelIdleTextLayers();
+    textLayerIdleTimer = setTimeout(function() {
+        textLayerIdleTimer = null;
+        buildNextIdleTextLayer();
+    }, textLayerIdleDelay);
+}
+
+// One layer per idle period, the DOM work of a dense page can take a whole frame
+function buildNextIdleTextLayer() {
+    if (pendingTextLayers.size === 0) {
+        return;
+    }
+    textLayerIdleCallback = requestIdleCallback(function() {
+        textLayerIdleCallback = null;
+        buildTextLayer(pendingTextLayers.values().next().value).then(buildNextIdleTextLayer);
+    });
+}
+
+function cancelIdleTextLayers() {
+    if (textLayerIdleTimer !== null) {
+        clearTimeout(textLayerIdleTimer);
+        textLayerIdleTimer = null;
+    }
+    if (textLayerIdleCallback !== null) {
+        cancelIdleCallback(textLayerIdleCallback);
+        textLayerIdleCallback = null;
+    }
+}
+
+function cancelSelectionIntent() {
+    if (selectionIntent !== null) {
+        clearTimeout(selectionIntent.timer);
+        selectionIntent = null;
+    }
+}
+
+function onSelectionIntentStart(event) {
+    cancelSelectionIntent();
+    if (event.touches.length !== 1 || pendingTextLayers.size === 0) {
+        return;
+    }
+    selectionIntent = {
+        x: event.touches[0].clientX,
+        y: event.touches[0].clientY,
+        timer: setTimeout(function() {
+            selectionIntent = null;
+            buildPendingTextLayers();
+        }, selectionIntentDelay)
+    };
+}
+
+function onSelectionIntentMove(event) {
+    if (selectionIntent !== null && Math.hypot(event.touches[0].clientX - selectionIntent.x,
+            event.touches[0].clientY - selectionIntent.y) > selectionIntentSlop) {
+        cancelSelectionIntent();
+    }
+}
+
+// Extracts the text of every page during idle time and feeds it to the search index
+function buildSearchIndex(doc) {
+    if (searchIndexDoc === doc) {
+        return;
+    }
+    searchIndexDoc = doc;
+    let batch = [];
+
+    function flush() {
+        if (batch.length > 0) {
+            postToHost({type: "searchText", pages: batch});
+            batch = [];
+        }
+    }
+
+    function indexPage(pageNumber) {
+        // Stops once the document is closed or parked, resuming it starts over from the
+        // first page the host doesn't have
+        if (pdfDoc !== doc || viewerState.searchIndexed) {
+            if (searchIndexDoc === doc) {
+                searchIndexDoc = null;
+            }
+            return;
+        }
+        if (pageNumber > doc.numPages) {
+            searchIndexDoc = null;
+            flush();
+            postToHost({type: "searchIndexFinished"});
+            return;
+        }
+        requestIdleCallback(function() {
+            doc.getPage(pageNumber).then(function(page) {
+                return page.getTextContent();
+            }).then(function(textContent) {
+                if (pdfDoc !== doc) {
+                    indexPage(pageNumber + 1);
+                    return;
+                }
+                batch.push({
+                    page: pageNumber,
+                    text: textContent.items.map(function(item) {
+                        return item.str;
+                    }).join(" ")
+                });
+                if (batch.length >= searchBatchSize) {
+                    flush();
+                }
+                indexPage(pageNumber + 1);
+            }, function() {
+                indexPage(pageNumber + 1);
+            });
+        });
+    }
+
+    indexPage(1);
+}
+
+function onPagePainted(doc) {
+    if (doc !== null && metadataDoc !== doc) {
+        metadataDoc = doc;
+        requestIdleCallback(function() {
+            extractMetadata(doc);
+        });
+    }
+}
+
+function simplifyOutline(items) {
+    if (!items) {
+        return [];
+    }
+    return items.map(function(item) {
+        return {title: item.title, dest: item.dest, items: simplifyOutline(item.items)};
+    });
+}
+
+// Float32Array contents as base64, the only compact form the channel can carry. Android
+// devices are all little endian, which is what the host reads.
+function encodePageGeometry(geometry) {
+    const bytes = new Uint8Array(geometry.buffer);
+    const chunkSize = 8192;
+    let binary = "";
+    for (let i = 0; i < bytes.length; i += chunkSize) {
+        binary += String.fromCharCode.apply(null, bytes.subarray(i, i + chunkSize));
+    }
+    return btoa(binary);
+}
+
+function decodePageGeometry(data) {
+    const binary = atob(data);
+    const bytes = new Uint8Array(binary.length);
+    for (let i = 0; i < binary.length; i++) {
+        bytes[i] = binary.charCodeAt(i);
+    }
+    return new Float32Array(bytes.buffer);
+}
+
+// The page index the host has for the open document, sent once it has been opened but
+// possibly before pdf.js has finished loading it
+function onPageGeometry(data) {
+    if (pageGeometry === null) {
+        pageGeometry = decodePageGeometry(data);
+    }
+}
+
+function getPageGeometry() {
+    if (pageGeometry !== null && pdfDoc !== null && pageGeometry.length !== pdfDoc.numPages * 3) {
+        pageGeometry = null;
+    }
+    return pageGeometry;
+}
+
+// Sends the info dictionary, outline, page labels and page index to the host, which keeps
+// them per document hash and reports them as loaded when it already has them
+function extractMetadata(doc) {
+    function isCurrent() {
+        return pdfDoc === doc && !viewerState.metadataLoaded;
+    }
+
+    // Visits every page in idle time and hands the whole index over in a single message
+    function buildPageIndex(labels) {
+        const geometry = new Float32Array(doc.numPages * 3);
+
+        function indexPages(startPage) {
+            if (!isCurrent()) {
+                return;
+            }
+            if (startPage > doc.numPages) {
+                pageGeometry = geometry;
+                postToHost({type: "pageIndex", geometry: encodePageGeometry(geometry), labels: labels});
+                postToHost({type: "metadataFinished"});
+                return;
+            }
+            const endPage = Math.min(doc.numPages, startPage + pageIndexBatchSize - 1);
+            const pages = [];
+            for (let i = startPage; i <= endPage; i++) {
+                pages.push(doc.getPage(i));
+            }
+            Promise.all(pages).then(function(pages) {
+                for (const page of pages) {
+                    const viewport = page.getViewport(1);
+                    const offset = (page.pageNumber - 1) * 3;
+                    geometry[offset] = viewport.width;
+                    geometry[offset + 1] = viewport.height;
+                    geometry[offset + 2] = page.rotate;
+                }
+                requestIdleCallback(function() {
+                    indexPages(endPage + 1);
+                });
+            }).catch(reportError);
+        }
+
+        if (viewerState.pageIndexLoaded) {
+            postToHost({type: "metadataFinished"});
+        } else {
+            indexPages(1);
+        }
+    }
+
+    if (!isCurrent()) {
+        return;
+    }
+    doc.getMetadata().then(function(data) {
+        if (!isCurrent()) {
+            return;
+        }
+        postToHost({type: "documentInfo", info: data.info});
+        return doc.getOutline().then(function(outline) {
+            if (!isCurrent()) {
+                return;
+            }
+            postToHost({type: "outline", outline: simplifyOutline(outline)});
+            return doc.getPageLabels().then(function(labels) {
+                if (!isCurrent()) {
+                    return;
+                }
+                postToHost({type: "pageLabels", labels: labels});
+                buildPageIndex(labels);
+            });
+        });
+    }).catch(reportError);
+}
+
+// Resolves to the 1-based page of a named or explicit destination, -1 when it has none
+function resolveDestination(doc, dest) {
+    const explicit = typeof dest === "string" ? doc.getDestination(dest) : Promise.resolve(dest);
+    return explicit.then(function(explicit) {
+        if (!Array.isArray(explicit)) {
+            return -1;
+        }
+        const target = explicit[0];
+        if (Number.isInteger(target)) {
+            return target + 1;
+        }
+        return doc.getPageIndex(target).then(function(index) {
+            return index + 1;
+        });
+    }).catch(function() {
+        return -1;
+    });
+}
+
+// Outline entries are resolved only once the host is about to show them, resolving every
+// destination up front takes seconds on documents with thousands of entries
+function resolveDestinations(requestId, destinations) {
+    const doc = pdfDoc;
+    Promise.all(destinations.map(function(destination) {
+        return doc === null ? -1 : resolveDestination(doc, JSON.parse(destination));
+    })).then(function(pages) {
+        postToHost({type: "destinations", requestId: requestId, pages: pages});
+    });
+}
+
+// Reports the time spent in a rendering stage and returns the start of the next one
+function reportStage(stage, start) {
+    const now = performance.now();
+    postToHost({type: "timing", stage: stage, millis: now - start});
+    return now;
+}
+
 function renderPage() {
+    cancelPrefetch();
+    cancelTileRendering();
+    pauseThumbnails();
     pageRendering = true;
-    pdfDoc.getPage(channel.getPage()).then(function(page) {
+    const doc = pdfDoc;
+    const pageNumber = viewerState.page;
+    const zoom = viewerState.zoom;
+    const renderStart = performance.now();
+    let stageStart = renderStart;
+    doc.getPage(pageNumber).then(function(page) {
+        // The document was closed or replaced while this render was in flight
+        if (pdfDoc !== doc) {
+            return;
+        }
+        stageStart = reportStage("getPage", stageStart);
+        cancelTextLayer(textLayer);
+        textLayer = null;
         let last;
         while (last = textLayerDiv.lastChild) {
             textLayerDiv.removeChild(last);
         }
 
-        const newCanvas = document.createElement("canvas");
+        const viewport = page.getViewport(zoom)
+        const ratio = window.devicePixelRatio;
+        const tiled = useTiles(viewport, ratio);
+        const prefetchKey = getPrefetchKey(pageNumber, zoom, ratio);
+        const prefetchedCanvas = prefetchedPages.get(prefetchKey);
+        prefetchedPages.delete(prefetchKey);
+
+        let newCanvas;
+        if (tiled) {
+            newCanvas = document.createElement("canvas");
+            newCanvas.width = 0;
+            newCanvas.height = 0;
+        } else {
+            clearTiles();
+            if (!prefetchedCanvas) {
+                reclaimSurfaces(getCanvasBytes(viewport, ratio));
+            }
+            newCanvas = prefetchedCanvas || createPageCanvas(viewport, ratio);
+        }
         canvas.replaceWith(newCanvas);
         canvas = newCanvas;
 
-        const viewport = page.getViewport(zoomLevels[channel.getZoomLevel()] / 100)
-        const ratio = window.devicePixelRatio;
-        canvas.height = viewport.height * ratio;
-        canvas.width = viewport.width * ratio;
-        canvas.style.height = viewport.height + "px";
-        canvas.style.width = viewport.width + "px";
-        const ctx = canvas.getContext("2d");
-        ctx.scale(ratio, ratio);
-
-        textLayerDiv.style.height = canvas.style.height;
-        textLayerDiv.style.width = canvas.style.width;
-
-        renderTask = page.render({
-            canvasContext: ctx,
-            viewport: viewport
-        });
+        textLayerDiv.style.height = viewport.height + "px";
+        textLayerDiv.style.width = viewport.width + "px";
+        resetPinch();
+
+        let rendered;
+        if (tiled) {
+            renderTask = null;
+            rendered = showTiledPage(page, viewport, pageNumber, zoom, ratio);
+        } else if (prefetchedCanvas) {
+            renderTask = null;
+            rendered = Promise.resolve();
+        } else {
+            renderTask = null;
+            const fullCanvas = newCanvas;
+            rendered = getCachedPage(pageNumber, zoom, ratio).then(function(cached) {
+                if (pdfDoc !== doc || renderPending) {
+                    throw renderCancelled();
+                }
+                if (cached) {
+                    const ctx = fullCanvas.getContext("2d");
+                    ctx.scale(ratio, ratio);
+                    return paintCachedPage(ctx, cached, viewport);
+                }
+                // The low resolution canvas is stretched to the full size until the full
+                // resolution pass replaces it
+                const previewCanvas = createPageCanvas(viewport, ratio * previewScale);
+                canvas.replaceWith(previewCanvas);
+                canvas = previewCanvas;
+                const previewCtx = previewCanvas.getContext("2d");
+                previewCtx.scale(ratio * previewScale, ratio * previewScale);
+                renderTask = page.render({
+                    canvasContext: previewCtx,
+                    viewport: viewport
+                });
+                return renderTask.then(function() {
+                    if (renderPending) {
+                        throw renderCancelled();
+                    }
+                    const drawing = rasterizePage(page, fullCanvas, viewport, pageNumber, zoom, ratio);
+                    renderTask = drawing.task;
+                    return drawing.promise;
+                }).then(function() {
+                    previewCanvas.replaceWith(fullCanvas);
+                    canvas = fullCanvas;
+                });
+            });
+        }
 
         function finishRendering() {
+            if (pdfDoc !== doc) {
+                return;
+            }
             pageRendering = false;
-            maybeRenderNextPage();
+            if (!maybeRenderNextPage()) {
+                maybeCleanupDocument();
+                schedulePrefetch(pageNumber, zoom, ratio);
+                scheduleThumbnail();
+            }
         }
 
-        renderTask.then(function() {
-            if (maybeRenderNextPage()) {
+        rendered.then(function() {
+            stageStart = reportStage("render", stageStart);
+            if (pdfDoc !== doc || maybeRenderNextPage()) {
                 return;
             }
 
-            page.getTextContent().then(function(textContent) {
-                if (maybeRenderNextPage()) {
-                    return;
+            textLayer = deferTextLayer(page, viewport, textLayerDiv);
+            postToHost({type: "rendered", millis: performance.now() - renderStart});
+            onPagePainted(doc);
+            finishRendering();
+        }).catch(failRendering);
+
+        function failRendering(error) {
+            reportError(error);
+            finishRendering();
+        }
+    }, reportError);
+}
+
+// Replaces the queue, the host sends the pages currently visible in its grid first
+function onRenderThumbnails(pages, width) {
+    if (width !== thumbnailWidth) {
+        pauseThumbnails();
+    }
+    thumbnailQueue = pages;
+    thumbnailWidth = width;
+    scheduleThumbnail();
+}
+
+// Stops the thumbnail being rendered so it doesn't compete with a page render, it is put
+// back at the front of the queue
+function pauseThumbnails() {
+    if (thumbnailCallback !== null) {
+        cancelIdleCallback(thumbnailCallback);
+        thumbnailCallback = null;
+    }
+    if (thumbnailTask !== null) {
+        thumbnailTask.cancel();
+        thumbnailQueue.unshift(thumbnailTask.pageNumber);
+        thumbnailTask = null;
+    }
+}
+
+function scheduleThumbnail() {
+    if (pdfDoc === null || pageRendering || thumbnailCallback !== null || thumbnailTask !== null ||
+            thumbnailQueue.length === 0) {
+        return;
+    }
+    thumbnailCallback = requestIdleCallback(function() {
+        thumbnailCallback = null;
+        const doc = pdfDoc;
+        const width = thumbnailWidth;
+        const thumbnail = {
+            pageNumber: thumbnailQueue.shift(),
+            task: null,
+            cancel: function() {
+                if (this.task !== null) {
+                    this.task.cancel();
                 }
+            }
+        };
+        thumbnailTask = thumbnail;
 
-                const textLayerFrag = document.createDocumentFragment();
-                textLayerRenderTask = PDFJS.renderTextLayer({
-                    textContent: textContent,
-                    container: textLayerFrag,
+        doc.getPage(thumbnail.pageNumber).then(function(page) {
+            if (thumbnailTask !== thumbnail) {
+                return null;
+            }
+            const viewport = page.getViewport(width / page.getViewport(1).width);
+            const thumbnailCanvas = createPageCanvas(viewport, 1);
+            const ctx = thumbnailCanvas.getContext("2d");
+            let drawn;
+            if (renderWorkers !== null) {
+                thumbnail.task = renderInWorker(thumbnail.pageNumber, viewport.scale, 1);
+                drawn = thumbnail.task.promise.then(function(bitmap) {
+                    ctx.drawImage(bitmap, 0, 0);
+                    bitmap.close();
+                });
+            } else {
+                thumbnail.task = page.render({
+                    canvasContext: ctx,
                     viewport: viewport
                 });
-                textLayerRenderTask.promise.then(function() {
-                    textLayerDiv.appendChild(textLayerFrag);
-                    finishRendering();
-                }).catch(finishRendering);
-            }).catch(finishRendering);
-        }).catch(finishRendering);
+                drawn = thumbnail.task.promise;
+            }
+            return drawn.then(function() {
+                return encodeCanvas(thumbnailCanvas);
+            });
+        }).then(function(data) {
+            if (data !== null && pdfDoc === doc) {
+                postToHost({type: "thumbnail", page: thumbnail.pageNumber, width: width, data: data});
+            }
+        }, reportError).then(function() {
+            if (thumbnailTask === thumbnail) {
+                thumbnailTask = null;
+                maybeCleanupDocument();
+                scheduleThumbnail();
+            }
+        });
+    });
+}
+
+function acquireCanvas() {
+    return canvasPool.pop() || document.createElement("canvas");
+}
+
+function releaseCanvas(pageCanvas) {
+    pageCanvas.remove();
+    // Shrinking the canvas frees its backing store while it sits in the pool
+    pageCanvas.width = 0;
+    pageCanvas.height = 0;
+    if (canvasPool.length < maxPooledCanvases) {
+        canvasPool.push(pageCanvas);
+    }
+}
+
+function releasePageView(view) {
+    view.active = false;
+    if (view.renderTask !== null) {
+        view.renderTask.cancel();
+        view.renderTask = null;
+    }
+    cancelTextLayer(view.textLayer);
+    view.textLayer = null;
+    if (view.canvas !== null) {
+        releaseCanvas(view.canvas);
+        view.canvas = null;
+    }
+    if (view.textDiv !== null) {
+        view.textDiv.remove();
+        view.textDiv = null;
+    }
+}
+
+function renderPageView(view, layout) {
+    view.active = true;
+    pdfDoc.getPage(view.pageNumber).then(function(page) {
+        if (!view.active || continuousLayout !== layout) {
+            return;
+        }
+        const viewport = page.getViewport(layout.zoom);
+        view.div.style.width = viewport.width + "px";
+        view.div.style.height = viewport.height + "px";
+
+        reclaimSurfaces(getCanvasBytes(viewport, layout.ratio));
+        const pageCanvas = acquireCanvas();
+        pageCanvas.height = viewport.height * layout.ratio;
+        pageCanvas.width = viewport.width * layout.ratio;
+        pageCanvas.style.height = viewport.height + "px";
+        pageCanvas.style.width = viewport.width + "px";
+        view.canvas = pageCanvas;
+        view.div.appendChild(pageCanvas);
+
+        const drawing = drawPage(page, pageCanvas, viewport, view.pageNumber, layout.zoom, layout.ratio);
+        view.renderTask = drawing.task;
+        drawing.promise.then(function() {
+            view.renderTask = null;
+            maybeCleanupDocument();
+            if (!view.active) {
+                return;
+            }
+            onPagePainted(pdfDoc);
+            const textDiv = document.createElement("div");
+            textDiv.className = "textLayer";
+            view.textDiv = textDiv;
+            view.div.appendChild(textDiv);
+            view.textLayer = deferTextLayer(page, viewport, textDiv);
+        }).catch(function() {
+            view.renderTask = null;
+        });
+    });
+}
+
+// Index of the page view containing the vertical offset y
+function findPageViewAt(views, y) {
+    let low = 0;
+    let high = views.length - 1;
+    while (low < high) {
+        const mid = (low + high + 1) >> 1;
+        if (views[mid].div.offsetTop <= y) {
+            low = mid;
+        } else {
+            high = mid - 1;
+        }
+    }
+    return low;
+}
+
+function updateVisiblePages() {
+    scrollUpdatePending = false;
+    const layout = continuousLayout;
+    if (layout === null || layout.views.length === 0) {
+        return;
+    }
+    const views = layout.views;
+    const top = window.scrollY - window.innerHeight * continuousBuffer;
+    const bottom = window.scrollY + window.innerHeight * (1 + continuousBuffer);
+
+    const wanted = new Set();
+    for (let i = findPageViewAt(views, top); i < views.length && views[i].div.offsetTop <= bottom; i++) {
+        wanted.add(views[i]);
+    }
+    for (const view of layout.activeViews) {
+        if (!wanted.has(view)) {
+            releasePageView(view);
+        }
+    }
+    for (const view of wanted) {
+        if (!view.active) {
+            renderPageView(view, layout);
+        }
+    }
+    layout.activeViews = wanted;
+
+    const centerPage = views[findPageViewAt(views, window.scrollY + window.innerHeight / 2)].pageNumber;
+    if (centerPage !== layout.centerPage) {
+        layout.centerPage = centerPage;
+        postToHost({type: "page", page: centerPage});
+    }
+}
+
+function reportScroll() {
+    scrollReportTimer = null;
+    if (pdfDoc !== null) {
+        postToHost({type: "scroll", x: Math.round(window.scrollX), y: Math.round(window.scrollY)});
+    }
+}
+
+function onScroll() {
+    if (scrollReportTimer !== null) {
+        clearTimeout(scrollReportTimer);
+    }
+    scrollReportTimer = setTimeout(reportScroll, scrollReportDelay);
+    if (scrollUpdatePending) {
+        return;
+    }
+    if (continuousLayout !== null) {
+        scrollUpdatePending = true;
+        requestAnimationFrame(updateVisiblePages);
+    } else if (tiledPage !== null) {
+        scrollUpdatePending = true;
+        requestAnimationFrame(function() {
+            scrollUpdatePending = false;
+            updateVisibleTiles();
+        });
+    }
+}
+
+function scrollToPage(layout, pageNumber) {
+    layout.centerPage = pageNumber;
+    window.scrollTo(window.scrollX, layout.views[pageNumber - 1].div.offsetTop);
+}
+
+function clearContinuous() {
+    if (continuousLayout === null) {
+        return;
+    }
+    for (const view of continuousLayout.activeViews) {
+        releasePageView(view);
+    }
+    continuousLayout = null;
+    while (pagesDiv.lastChild) {
+        pagesDiv.removeChild(pagesDiv.lastChild);
+    }
+    document.body.classList.remove("continuous");
+}
+
+function showContinuous() {
+    const pageNumber = viewerState.page;
+    const zoom = viewerState.zoom;
+    const ratio = window.devicePixelRatio;
+    const current = continuousLayout;
+    if (current !== null && current.zoom === zoom && current.ratio === ratio) {
+        if (pageNumber !== current.centerPage) {
+            scrollToPage(current, pageNumber);
+            updateVisiblePages();
+        }
+        resetPinch();
+        return;
+    }
+
+    clearContinuous();
+    document.body.classList.add("continuous");
+    const layout = {
+        zoom: zoom,
+        ratio: ratio,
+        views: [],
+        activeViews: new Set(),
+        centerPage: 0
+    };
+    continuousLayout = layout;
+
+    // Placeholders take their size from the page index when there is one, otherwise they
+    // start out with the size of the first page and are corrected as each page is rendered
+    pdfDoc.getPage(1).then(function(page) {
+        if (continuousLayout !== layout) {
+            return;
+        }
+        const viewport = page.getViewport(zoom);
+        const geometry = getPageGeometry();
+        const fragment = document.createDocumentFragment();
+        for (let i = 1; i <= pdfDoc.numPages; i++) {
+            const div = document.createElement("div");
+            div.className = "page";
+            if (geometry !== null) {
+                div.style.width = geometry[(i - 1) * 3] * zoom + "px";
+                div.style.height = geometry[(i - 1) * 3 + 1] * zoom + "px";
+            } else {
+                div.style.width = viewport.width + "px";
+                div.style.height = viewport.height + "px";
+            }
+            fragment.appendChild(div);
+            layout.views.push({
+                pageNumber: i,
+                div: div,
+                canvas: null,
+                textDiv: null,
+                renderTask: null,
+                textLayer: null,
+                active: false
+            });
+        }
+        pagesDiv.appendChild(fragment);
+        scrollToPage(layout, pageNumber);
+        resetPinch();
+        updateVisiblePages();
     });
 }
 
 function onRenderPage() {
+    if (pdfDoc === null) {
+        return;
+    }
+    cancelPrefetch();
+    if (viewerState.continuous) {
+        if (renderTask !== null) {
+            renderTask.cancel();
+            renderTask = null;
+        }
+        cancelTextLayer(textLayer);
+        textLayer = null;
+        renderPending = false;
+        clearTiles();
+        showContinuous();
+        return;
+    }
+    clearContinuous();
     if (pageRendering) {
+        postToHost({type: "cancellation"});
         renderPending = true;
+        cancelTileRendering();
         if (renderTask !== null) {
             renderTask.cancel();
             renderTask = null;
         }
-        if (textLayerRenderTask !== null) {
-            textLayerRenderTask.cancel();
-            textLayerRenderTask = null;
-        }
+        cancelTextLayer(textLayer);
+        textLayer = null;
     } else {
         renderPage();
     }
 }
 
-PDFJS.getDocument("https://localhost/placeholder.pdf").then(function(newDoc) {
-    pdfDoc = newDoc;
-    channel.setNumPages(pdfDoc.numPages);
-    pdfDoc.getMetadata().then(function(data) {
-        channel.setDocumentProperties(JSON.stringify(data.info, null, 2));
+function getTouchDistance(touches) {
+    return Math.hypot(touches[0].clientX - touches[1].clientX, touches[0].clientY - touches[1].clientY);
+}
+
+function onTouchStart(event) {
+    if (event.touches.length !== 2 || pdfDoc === null) {
+        return;
+    }
+    event.preventDefault();
+    if (zoomSettleTimer !== null) {
+        clearTimeout(zoomSettleTimer);
+        zoomSettleTimer = null;
+    }
+    // A gesture started before the previous one settled continues from its preview
+    if (pinchScale === 1) {
+        pinchOriginX = (event.touches[0].clientX + event.touches[1].clientX) / 2 + window.scrollX;
+        pinchOriginY = (event.touches[0].clientY + event.touches[1].clientY) / 2 + window.scrollY;
+        document.body.style.transformOrigin = pinchOriginX + "px " + pinchOriginY + "px";
+    }
+    pinch = {
+        startDistance: getTouchDistance(event.touches),
+        startScale: pinchScale
+    };
+}
+
+function onTouchMove(event) {
+    if (pinch === null || event.touches.length !== 2) {
+        return;
+    }
+    event.preventDefault();
+    const zoom = viewerState.zoom;
+    const scale = pinch.startScale * getTouchDistance(event.touches) / pinch.startDistance;
+    pinchScale = Math.min(maxZoom / zoom, Math.max(minZoom / zoom, scale));
+    document.body.style.transform = "scale(" + pinchScale + ")";
+}
+
+function onTouchEnd(event) {
+    if (pinch === null || event.touches.length >= 2) {
+        return;
+    }
+    pinch = null;
+    zoomSettleTimer = setTimeout(commitZoom, zoomSettleDelay);
+}
+
+function commitZoom() {
+    zoomSettleTimer = null;
+    if (pinchScale === 1) {
+        resetPinch();
+        return;
+    }
+    pendingScroll = {
+        x: pinchOriginX * pinchScale - (pinchOriginX - window.scrollX),
+        y: pinchOriginY * pinchScale - (pinchOriginY - window.scrollY)
+    };
+    postToHost({type: "zoom", zoom: viewerState.zoom * pinchScale});
+}
+
+// Drops the preview transform once the page has been laid out at the committed zoom
+function resetPinch() {
+    if (pinch !== null || zoomSettleTimer !== null) {
+        return;
+    }
+    pinchScale = 1;
+    document.body.style.transform = "";
+    if (pendingScroll !== null) {
+        window.scrollTo(pendingScroll.x, pendingScroll.y);
+        pendingScroll = null;
+    }
+}
+
+window.addEventListener("scroll", onScroll);
+window.addEventListener("touchstart", onTouchStart, {passive: false});
+window.addEventListener("touchmove", onTouchMove, {passive: false});
+window.addEventListener("touchend", onTouchEnd);
+window.addEventListener("touchcancel", onTouchEnd);
+window.addEventListener("touchstart", onSelectionIntentStart, {passive: true});
+window.addEventListener("touchmove", onSelectionIntentMove, {passive: true});
+window.addEventListener("touchend", cancelSelectionIntent);
+window.addEventListener("touchcancel", cancelSelectionIntent);
+
+// Fetch the document in ranges on demand instead of pulling the whole file up front
+PDFJS.disableStream = true;
+PDFJS.disableAutoFetch = true;
+
+const documentUrl = "https://localhost/placeholder.pdf";
+const rangeChunkSize = 65536;
+// Served by the host from the binary CMaps bundled with pdf.js
+const cMapUrl = "https://localhost/cmaps/";
+// CMapCompressionType.BINARY, which pdf.js doesn't export
+const cMapCompressionBinary = 1;
+const maxCachedCMaps = 16;
+// pdf.js only keeps fetched CMaps for as long as a document is open, these are reused by
+// every document after it, least recently used first
+const cMaps = new Map();
+// Started with the page, before any document is known, so opening one doesn't have to wait
+// for pdf.worker.js to be loaded and parsed
+const pdfWorker = new PDFJS.PDFWorker("viewer");
+let loadingTask = null;
+let documentGeneration = 0;
+// Documents switched away from, kept open against the shared worker by the generation they
+// were opened with until the host resumes or evicts them. The host enforces the memory
+// budget, this only guards against it losing track of some.
+const maxParkedDocuments = 8;
+const parkedDocuments = new Map();
+
+// Drops everything shown for the current document without closing it
+function resetView() {
+    cancelPrefetch();
+    pauseThumbnails();
+    thumbnailQueue = [];
+    prefetchedPages.clear();
+    clearContinuous();
+    clearTiles();
+    if (renderTask !== null) {
+        renderTask.cancel();
+        renderTask = null;
+    }
+    cancelTextLayer(textLayer);
+    textLayer = null;
+    cancelIdleTextLayers();
+    if (scrollReportTimer !== null) {
+        clearTimeout(scrollReportTimer);
+        scrollReportTimer = null;
+    }
+    pendingScroll = null;
+    cancelSelectionIntent();
+    textContents.clear();
+    pageGeometry = null;
+    abandonCacheRequests();
+    pageRendering = false;
+    renderPending = false;
+
+    let last;
+    while (last = textLayerDiv.lastChild) {
+        textLayerDiv.removeChild(last);
+    }
+    const newCanvas = document.createElement("canvas");
+    newCanvas.width = 0;
+    newCanvas.height = 0;
+    canvas.replaceWith(newCanvas);
+    canvas = newCanvas;
+
+    postToRenderWorkers({type: "close"});
+}
+
+function onCloseDocument() {
+    resetView();
+    if (loadingTask !== null) {
+        loadingTask.destroy();
+        loadingTask = null;
+    }
+    pdfDoc = null;
+}
+
+function CachingCMapReaderFactory() {
+}
+
+CachingCMapReaderFactory.prototype.fetch = function(params) {
+    const name = params.name;
+    let cMap = cMaps.get(name);
+    if (cMap !== undefined) {
+        cMaps.delete(name);
+        cMaps.set(name, cMap);
+        return cMap;
+    }
+    cMap = new Promise(function(resolve, reject) {
+        const request = new XMLHttpRequest();
+        request.open("GET", cMapUrl + name + ".bcmap");
+        request.responseType = "arraybuffer";
+        request.onload = function() {
+            if (request.status === 200 && request.response) {
+                resolve({cMapData: new Uint8Array(request.response), compressionType: cMapCompressionBinary});
+            } else {
+                reject(new Error("Unable to load CMap " + name));
+            }
+        };
+        request.onerror = function() {
+            reject(new Error("Unable to load CMap " + name));
+        };
+        request.send();
+    });
+    cMap.catch(function() {
+        cMaps.delete(name);
     });
-    renderPage();
+    cMaps.set(name, cMap);
+    if (cMaps.size > maxCachedCMaps) {
+        cMaps.delete(cMaps.keys().next().value);
+    }
+    return cMap;
+};
+
+// Keeps the loaded document open in the worker so switching back to it skips loading and
+// parsing, releasing only the parsed page state pdf.js can recreate on demand
+function onParkDocument() {
+    if (pdfDoc === null) {
+        onCloseDocument();
+        return;
+    }
+    const parked = {task: loadingTask, doc: pdfDoc, searchIndexRequested: searchIndexRequested};
+    resetView();
+    loadingTask = null;
+    pdfDoc = null;
+    parked.doc.cleanup();
+    parkedDocuments.set(documentGeneration, parked);
+    if (parkedDocuments.size > maxParkedDocuments) {
+        onEvictDocument(parkedDocuments.keys().next().value);
+    }
+}
+
+function onEvictDocument(generation) {
+    const parked = parkedDocuments.get(generation);
+    if (parked !== undefined) {
+        parkedDocuments.delete(generation);
+        parked.task.destroy();
+    }
+}
+
+function onOpenDocument(generation) {
+    onCloseDocument();
+    documentGeneration = generation;
+    searchIndexRequested = false;
+    // Memory pressure from the previous document may well have passed
+    surfaceBudget = fullSurfaceBudget;
+    continuousBuffer = defaultContinuousBuffer;
+    documentCleanupPending = false;
+    // A distinct URL per document keeps anything fetched for the previous one from being reused
+    const url = documentUrl + "?document=" + generation;
+    const parked = parkedDocuments.get(generation);
+    if (parked !== undefined) {
+        parkedDocuments.delete(generation);
+        loadingTask = parked.task;
+        pdfDoc = parked.doc;
+        // Metadata extraction and indexing stopped when it was parked, both pick up from
+        // whatever the host already has
+        metadataDoc = null;
+        searchIndexRequested = parked.searchIndexRequested;
+        postToRenderWorkers({type: "open", url: url, rangeChunkSize: rangeChunkSize});
+        postToHost({type: "numPages", numPages: pdfDoc.numPages});
+        onRenderPage();
+        if (searchIndexRequested) {
+            buildSearchIndex(pdfDoc);
+        }
+        return;
+    }
+    const task = PDFJS.getDocument({
+        url: url,
+        rangeChunkSize: rangeChunkSize,
+        worker: pdfWorker,
+        CMapReaderFactory: CachingCMapReaderFactory
+    });
+    loadingTask = task;
+    task.then(function(newDoc) {
+        if (loadingTask !== task) {
+            return;
+        }
+        pdfDoc = newDoc;
+        postToRenderWorkers({type: "open", url: url, rangeChunkSize: rangeChunkSize});
+        postToHost({type: "numPages", numPages: pdfDoc.numPages});
+        onRenderPage();
+        if (searchIndexRequested) {
+            buildSearchIndex(pdfDoc);
+        }
+    }, function(error) {
+        if (loadingTask === task) {
+            reportError(error);
+        }
+    });
+}
+
+// Messages to the host are queued and sent as one batch once the current task is done, so
+// the many timings reported during a render cost a single crossing. Each carries the
+// generation of the open document so the host can drop those about one it moved on from.
+// Work finishing after its document was closed or parked has to check pdfDoc first.
+function postToHost(message) {
+    if (hostPort === null) {
+        return;
+    }
+    message.generation = documentGeneration;
+    hostOutbox.push(message);
+    if (hostOutbox.length === 1) {
+        setTimeout(flushToHost, 0);
+    }
+}
+
+function flushToHost() {
+    const batch = hostOutbox;
+    hostOutbox = [];
+    hostPort.postMessage(JSON.stringify(batch));
+}
+
+function reportError(error) {
+    if (error && (error.cancelled || error.name === "RenderingCancelledException")) {
+        return;
+    }
+    postToHost({type: "error", message: String(error)});
+}
+
+function onHostMessage(event) {
+    const message = JSON.parse(event.data);
+    switch (message.type) {
+        case "open":
+            onOpenDocument(message.generation);
+            break;
+        case "close":
+            onCloseDocument();
+            break;
+        case "indexSearch":
+            searchIndexRequested = true;
+            if (pdfDoc !== null) {
+                buildSearchIndex(pdfDoc);
+            }
+            break;
+        case "park":
+            onParkDocument();
+            break;
+        case "evict":
+            onEvictDocument(message.generation);
+            break;
+        case "renderThumbnails":
+            onRenderThumbnails(message.pages, message.width);
+            break;
+        case "surfaceBudget":
+            fullSurfaceBudget = message.bytes;
+            surfaceBudget = message.bytes;
+            break;
+        case "trimMemory":
+            onTrimMemory(message.level);
+            break;
+        case "scroll":
+            // Applied once the page has been laid out by the state change following it
+            pendingScroll = {x: message.x, y: message.y};
+            break;
+        case "resolveDestinations":
+            resolveDestinations(message.requestId, message.destinations);
+            break;
+        case "cachedPage":
+            onCachedPage(message.requestId, message.data);
+            break;
+        case "pageGeometry":
+            if (message.generation === documentGeneration) {
+                onPageGeometry(message.geometry);
+            }
+            break;
+        case "state":
+            // Renders requested while one is in progress collapse into the latest state
+            if (message.version > viewerState.version) {
+                viewerState = message;
+                // Updates to what the host has for the document don't change what's shown
+                if (!message.render) {
+                    break;
+                }
+                onRenderPage();
+                // Search matches are highlighted in the text layer
+                if (viewerState.searchQuery.length > 0) {
+                    buildPendingTextLayers();
+                }
+            }
+            break;
+    }
+}
+
+// The host hands over its end of a message channel once the page has loaded
+window.addEventListener("message", function(event) {
+    if (hostPort === null && event.data === "bridge" && event.ports.length === 1) {
+        hostPort = event.ports[0];
+        hostPort.onmessage = onHostMessage;
+    }
 });
+
+startRenderWorkers();
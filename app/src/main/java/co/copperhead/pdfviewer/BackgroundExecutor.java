@@ -0,0 +1,49 @@
+package co.copperhead.pdfviewer;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of background priority threads shared by per-document work such as hashing and
+ * metadata loading, so opening documents in quick succession queues work instead of spawning
+ * threads that compete with rendering.
+ */
+public final class BackgroundExecutor {
+    private static final int POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "background-" + mCount.incrementAndGet());
+        }
+    };
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private BackgroundExecutor() {
+    }
+
+    public static Executor get() {
+        return EXECUTOR;
+    }
+}
@@ -0,0 +1,35 @@
+package co.copperhead.pdfviewer;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a window of a memory mapping, each response gets its own view of it.
+ */
+class BufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+}
@@ -0,0 +1,216 @@
+package co.copperhead.pdfviewer;
+
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the binary CMaps bundled with pdf.js, needed to show text in CJK and other
+ * documents using predefined character maps. Assets are deflated in the APK and would be
+ * inflated again on every request, so each one is extracted into app storage the first time
+ * it is needed and memory-mapped from there. Mappings are kept for the life of the process
+ * and shared by every document, extracted files survive restarts.
+ *
+ * Each CMap is loaded once by whichever request gets to it first, requests for other CMaps
+ * don't wait on it. Names with no bundled CMap are remembered too.
+ */
+public class CMapCache {
+    private static final String TAG = "CMapCache";
+
+    private static final String HOST = "localhost";
+    private static final String PATH_PREFIX = "/cmaps/";
+    private static final String ASSET_DIRECTORY = "cmaps/";
+    private static final String SUFFIX = ".bcmap";
+    private static final String MIME_TYPE = "application/octet-stream";
+    // Names of the predefined CMaps, anything else can't be one of the bundled files
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    // Loaded for names with no bundled CMap
+    private static final ByteBuffer MISSING = ByteBuffer.allocate(0);
+
+    private final AssetManager mAssets;
+    private final File mDirectory;
+    private final ConcurrentHashMap<String, FutureTask<ByteBuffer>> mMappings =
+            new ConcurrentHashMap<>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private boolean mStaleRemoved;
+
+    /**
+     * @param version changes whenever the bundled assets may have, so files extracted from an
+     *                older APK are never served
+     */
+    public CMapCache(AssetManager assets, File directory, String version) {
+        mAssets = assets;
+        mDirectory = new File(directory, version);
+    }
+
+    public boolean isCMapRequest(Uri url) {
+        final String path = url.getPath();
+        return "https".equals(url.getScheme()) && HOST.equals(url.getHost()) && path != null &&
+                path.startsWith(PATH_PREFIX);
+    }
+
+    /**
+     * Responds to a request for which isCMapRequest returned true. Runs on the WebView's
+     * network threads, does disk I/O the first time a CMap is requested.
+     */
+    public WebResourceResponse serve(Uri url) {
+        final String fileName = url.getPath().substring(PATH_PREFIX.length());
+        if (!fileName.endsWith(SUFFIX) ||
+                !NAME.matcher(fileName.substring(0, fileName.length() - SUFFIX.length())).matches()) {
+            return notFound();
+        }
+        final ByteBuffer mapping = getMapping(fileName);
+        if (mapping == null) {
+            return notFound();
+        }
+        final Map<String, String> headers = Collections.singletonMap("Content-Length",
+                String.valueOf(mapping.remaining()));
+        return new WebResourceResponse(MIME_TYPE, null, 200, "OK", headers,
+                new BufferInputStream(mapping.duplicate()));
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    // Hits are CMaps already looked up by this process, anything read from storage is a miss
+    private ByteBuffer getMapping(final String fileName) {
+        FutureTask<ByteBuffer> task = mMappings.get(fileName);
+        if (task == null) {
+            final FutureTask<ByteBuffer> newTask = new FutureTask<>(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() {
+                    return load(fileName);
+                }
+            });
+            task = mMappings.putIfAbsent(fileName, newTask);
+            if (task == null) {
+                task = newTask;
+                mMisses.incrementAndGet();
+                newTask.run();
+            } else {
+                mHits.incrementAndGet();
+            }
+        } else {
+            mHits.incrementAndGet();
+        }
+
+        ByteBuffer mapping;
+        try {
+            mapping = task.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "failed to load " + fileName, e);
+            mapping = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (mapping == null) {
+            // Failed for a reason that may not last, the next request tries again
+            mMappings.remove(fileName, task);
+            return null;
+        }
+        return mapping == MISSING ? null : mapping;
+    }
+
+    // Returns MISSING if there's no such CMap, null if it couldn't be loaded
+    private ByteBuffer load(String fileName) {
+        final File file = new File(mDirectory, fileName);
+        try {
+            if (!file.isFile() && !extract(fileName, file)) {
+                Log.w(TAG, "no bundled CMap " + fileName);
+                return MISSING;
+            }
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to load " + fileName, e);
+            return null;
+        }
+    }
+
+    // Returns false if there's no such CMap
+    private boolean extract(String fileName, File file) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("failed to create cache directory");
+        }
+        removeStale();
+        final InputStream asset;
+        try {
+            asset = mAssets.open(ASSET_DIRECTORY + fileName);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        final File temp = new File(mDirectory, fileName + ".tmp");
+        try (InputStream input = asset;
+             OutputStream output = new FileOutputStream(temp)) {
+            final byte[] buffer = new byte[16384];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("failed to rename " + temp);
+        }
+        return true;
+    }
+
+    // Files extracted from an earlier version of the app are dead weight
+    private synchronized void removeStale() {
+        if (mStaleRemoved) {
+            return;
+        }
+        mStaleRemoved = true;
+        final File[] versions = mDirectory.getParentFile().listFiles();
+        if (versions == null) {
+            return;
+        }
+        for (final File version : versions) {
+            if (!version.equals(mDirectory)) {
+                final File[] files = version.listFiles();
+                if (files != null) {
+                    for (final File file : files) {
+                        file.delete();
+                    }
+                }
+                version.delete();
+            }
+        }
+    }
+
+    private static WebResourceResponse notFound() {
+        return new WebResourceResponse(MIME_TYPE, null, 404, "Not Found", null,
+                new ByteArrayInputStream(new byte[0]));
+    }
+}
@@ -0,0 +1,49 @@
+package co.copperhead.pdfviewer;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DocumentHash {
+    private static final String TAG = "DocumentHash";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DocumentHash() {
+    }
+
+    /**
+     * Returns the hex SHA-256 of the document contents, or null if it couldn't be read.
+     * This reads the whole file, so it must not be called on the UI thread.
+     */
+    public static String compute(ContentResolver resolver, Uri uri) {
+        try (InputStream inputStream = resolver.openInputStream(uri)) {
+            if (inputStream == null) {
+                return null;
+            }
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (IOException | SecurityException | NoSuchAlgorithmException e) {
+            Log.e(TAG, "failed to hash document", e);
+            return null;
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
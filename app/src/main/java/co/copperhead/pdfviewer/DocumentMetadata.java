@@ -0,0 +1,204 @@
+package co.copperhead.pdfviewer;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Information about a document extracted by pdf.js after the first page is shown: the info
+ * dictionary, outline, page labels and the page index. Filled in piece by piece from the
+ * bridge thread and read from the main thread, so all access is synchronized.
+ */
+public class DocumentMetadata {
+    private static final String TAG = "DocumentMetadata";
+
+    public static class OutlineItem {
+        public final String title;
+        // JSON encoded destination as pdf.js reports it, either a name or an explicit array,
+        // null for entries that only link to a URL
+        public final String destination;
+        public final List<OutlineItem> children;
+        // 1-based page the destination points to, 0 until it has been resolved and -1 if it
+        // can't be, looked up only once the entry is shown
+        private volatile int mPage;
+
+        OutlineItem(String title, String destination, List<OutlineItem> children) {
+            this.title = title;
+            this.destination = destination;
+            this.children = children;
+            mPage = destination == null ? -1 : 0;
+        }
+
+        public int getPage() {
+            return mPage;
+        }
+
+        public void setPage(int page) {
+            mPage = page;
+        }
+    }
+
+    private String mTitle;
+    private String mAuthor;
+    private String mSubject;
+    private String mKeywords;
+    private String mCreationDate;
+    private String mModificationDate;
+    private String mProducer;
+    private String mCreator;
+    private String mFormatVersion;
+    private int mNumPages;
+    private List<OutlineItem> mOutline;
+    private String[] mPageLabels;
+    // Geometry and labels of every page, null until the background pass has built it
+    private PageIndex mPageIndex;
+    private boolean mComplete;
+
+    public synchronized void setNumPages(int numPages) {
+        mNumPages = numPages;
+    }
+
+    public synchronized int getNumPages() {
+        return mNumPages;
+    }
+
+    public synchronized void setInfo(JSONObject info) {
+        mTitle = info.optString("Title", null);
+        mAuthor = info.optString("Author", null);
+        mSubject = info.optString("Subject", null);
+        mKeywords = info.optString("Keywords", null);
+        mCreationDate = info.optString("CreationDate", null);
+        mModificationDate = info.optString("ModDate", null);
+        mProducer = info.optString("Producer", null);
+        mCreator = info.optString("Creator", null);
+        mFormatVersion = info.optString("PDFFormatVersion", null);
+    }
+
+    public synchronized void setOutline(JSONArray outline) throws JSONException {
+        mOutline = parseOutline(outline);
+    }
+
+    private static List<OutlineItem> parseOutline(JSONArray items) throws JSONException {
+        if (items == null || items.length() == 0) {
+            return Collections.emptyList();
+        }
+        final List<OutlineItem> outline = new ArrayList<>(items.length());
+        for (int i = 0; i < items.length(); i++) {
+            final JSONObject item = items.getJSONObject(i);
+            final Object dest = item.opt("dest");
+            final String destination;
+            if (dest instanceof String) {
+                destination = JSONObject.quote((String) dest);
+            } else if (dest instanceof JSONArray) {
+                destination = dest.toString();
+            } else {
+                destination = null;
+            }
+            outline.add(new OutlineItem(item.optString("title"), destination,
+                    parseOutline(item.optJSONArray("items"))));
+        }
+        return Collections.unmodifiableList(outline);
+    }
+
+    /**
+     * Returns the top level outline entries, null while it hasn't been extracted yet.
+     */
+    public synchronized List<OutlineItem> getOutline() {
+        return mOutline;
+    }
+
+    public synchronized void setPageLabels(JSONArray labels) throws JSONException {
+        if (labels == null) {
+            mPageLabels = null;
+            return;
+        }
+        mPageLabels = new String[labels.length()];
+        for (int i = 0; i < mPageLabels.length; i++) {
+            mPageLabels[i] = labels.getString(i);
+        }
+    }
+
+    /**
+     * Returns the label of a 1-based page, its number if the document doesn't define labels.
+     */
+    public synchronized String getPageLabel(int page) {
+        if (mPageLabels != null && page >= 1 && page <= mPageLabels.length) {
+            return mPageLabels[page - 1];
+        }
+        return String.valueOf(page);
+    }
+
+    /**
+     * Returns the labels of all pages in order, null if the document doesn't define any or
+     * they haven't been extracted yet.
+     */
+    public synchronized String[] getPageLabels() {
+        return mPageLabels;
+    }
+
+    public synchronized void setPageIndex(PageIndex pageIndex) {
+        mPageIndex = pageIndex;
+        // The index may have been loaded before pdf.js got to reporting the labels
+        if (mPageLabels == null) {
+            mPageLabels = pageIndex.getLabels();
+        }
+    }
+
+    public synchronized PageIndex getPageIndex() {
+        return mPageIndex;
+    }
+
+    public synchronized void setComplete() {
+        mComplete = true;
+    }
+
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Formats the properties shown in the document properties dialog, in the order of the
+     * document_properties string array.
+     */
+    public synchronized String formatProperties(String[] names, String fileName, long fileSize,
+            Locale locale, String invalidDate) {
+        final String[] values = {
+                fileName,
+                fileSize < 0 ? null : DocumentPropertiesParser.parseFileSize(fileSize),
+                mTitle,
+                mAuthor,
+                mSubject,
+                mKeywords,
+                formatDate(mCreationDate, locale, invalidDate),
+                formatDate(mModificationDate, locale, invalidDate),
+                mProducer,
+                mCreator,
+                mFormatVersion,
+                String.valueOf(mNumPages)
+        };
+        final StringBuilder properties = new StringBuilder();
+        for (int i = 0; i < names.length && i < values.length; i++) {
+            properties.append(DocumentPropertiesParser.formatProperty(names[i], values[i]));
+        }
+        return properties.toString();
+    }
+
+    private static String formatDate(String date, Locale locale, String invalidDate) {
+        if (date == null) {
+            return null;
+        }
+        final String parsed = DocumentPropertiesParser.parseDate(date, locale);
+        if (parsed == null) {
+            Log.w(TAG, "invalid date: " + date);
+            return invalidDate;
+        }
+        return parsed;
+    }
+}
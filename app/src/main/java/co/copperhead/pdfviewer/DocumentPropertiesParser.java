@@ -0,0 +1,178 @@
+package co.copperhead.pdfviewer;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parsing and formatting of document properties. Kept free of Android dependencies so it can
+ * be exercised on a plain JVM.
+ */
+public class DocumentPropertiesParser {
+    private DocumentPropertiesParser() {
+    }
+
+    public static String formatProperty(String propertyName, String propertyValue) {
+        if (propertyValue == null || propertyValue.isEmpty()) {
+            return String.format("\n%s:\n-\n", propertyName);
+        }
+        return String.format("\n%s:\n%s\n", propertyName, propertyValue);
+    }
+
+    public static String parseFileSize(long fileSize) {
+        final double kb = fileSize / 1000;
+        if (((long) kb) == 0) {
+            return String.format("%s bytes", String.valueOf(fileSize));
+        } else {
+            final DecimalFormat format = new DecimalFormat("#.##");
+            format.setRoundingMode(RoundingMode.CEILING);
+            if (kb < 1000) {
+                return String.format("%s kB (%s bytes)", format.format(kb), String.valueOf(fileSize));
+            }
+            return String.format("%s MB (%s bytes)", format.format(kb / 1000), String.valueOf(fileSize));
+        }
+    }
+
+    /**
+     * Formats a PDF date string ("D:YYYYMMDDHHmmSSOHH'mm'") for display, returning "-" when
+     * the property is missing and null when it is malformed.
+     */
+    public static String parseDate(String dateToParse, Locale locale) {
+        // No date property found
+        if (dateToParse.equals("-")) {
+            return "-";
+        }
+
+        // Date must at least contain a year
+        final boolean dateHasPrefix = dateToParse.startsWith("D:");
+        final int dateMinLength = dateHasPrefix ? 6 : 4;
+        if (dateToParse.length() < dateMinLength || dateToParse.length() > 23) {
+            return null;
+        }
+
+        // Date can have a D: prefix
+        if (dateHasPrefix) {
+            dateToParse = dateToParse.substring(2);
+        }
+
+        // Calendar month starts at 0
+        int year = 1970, month = 0, day = 1, hours = 0, minutes = 0;
+        int seconds = 0, utRelOffset = 4;
+        // Fields are converted to UT below, the device's time zone must not shift them again
+        final TimeZone timeZone = TimeZone.getTimeZone("UTC");
+        final Calendar calendar = Calendar.getInstance(timeZone);
+
+        // Year is mandatory
+        try {
+            final int parsedYear = parseDigits(dateToParse, 0, 4);
+            if (parsedYear <= calendar.get(Calendar.YEAR) && parsedYear > year) {
+                year = parsedYear;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        // Those fields are optional, the UT offset may follow any of them
+        int fieldsEnd = 4;
+        while (fieldsEnd < dateToParse.length() && Character.isDigit(dateToParse.charAt(fieldsEnd))) {
+            fieldsEnd++;
+        }
+        final String fields = dateToParse.substring(0, fieldsEnd);
+        try {
+            month = parseDigits(fields, 4, 6) - 1;
+            utRelOffset += 2;
+            day = parseDigits(fields, 6, 8);
+            utRelOffset += 2;
+            hours = parseDigits(fields, 8, 10);
+            utRelOffset += 2;
+            minutes = parseDigits(fields, 10, 12);
+            utRelOffset += 2;
+            seconds = parseDigits(fields, 12, 14);
+            utRelOffset += 2;
+        } catch (IndexOutOfBoundsException ignored) {
+            // It is allowed for all fields except year to be missing
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        // A field cut short or digits past the seconds
+        if (utRelOffset != fieldsEnd) {
+            return null;
+        }
+
+        // Perform basic date validation
+        if ((month < 0 || month > 11) || (day < 1 || day > 31) ||
+                (hours < 0 || hours > 23) || (minutes < 0 || minutes > 59) ||
+                (seconds < 0 || seconds > 59)) {
+            return null;
+        }
+
+        int offsetHours = 0, offsetMinutes = 0, combinedOffset = 0;
+        String utRel = "";
+
+        try {
+            utRel = String.valueOf(dateToParse.charAt(utRelOffset));
+            if (utRel.equals("Z")) {
+                // Any offset after Z is meaningless, it can only be zero
+                combinedOffset = 0;
+            } else if (utRel.equals("+") || utRel.equals("-")) {
+                offsetHours = parseDigits(dateToParse, utRelOffset + 1, utRelOffset + 3);
+                offsetMinutes = parseDigits(dateToParse, utRelOffset + 4, utRelOffset + 6);
+                combinedOffset = (utRel.equals("-") ? -1 : 1) * (offsetHours * 100 + offsetMinutes);
+            } else {
+                return null;
+            }
+        } catch (IndexOutOfBoundsException ignored) {
+            // It is allowed for all fields except year to be missing
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // Validate UT offset
+        if (combinedOffset < -1200 || combinedOffset > 1400) {
+            return null;
+        }
+
+
+        // The fields are local time, which is ahead of UT by a positive offset
+        switch (utRel) {
+            case "+":
+                hours -= offsetHours;
+                minutes -= offsetMinutes;
+                break;
+            case "-":
+                hours += offsetHours;
+                minutes += offsetMinutes;
+                break;
+            case "Z":
+                // "Z" means local time equal to UT
+                break;
+            default:
+                break;
+        }
+
+        calendar.set(year, month, day, hours, minutes, seconds);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy", locale);
+        dateFormat.setTimeZone(timeZone);
+        final Date date = calendar.getTime();
+        final String dateString = dateFormat.format(date);
+        dateFormat = new SimpleDateFormat("HH:mm:ss", locale);
+        dateFormat.setTimeZone(timeZone);
+        final String timeString = dateFormat.format(date);
+
+        return String.format("%s %s", dateString, timeString);
+    }
+
+    // Unlike Integer.parseInt, rejects signs
+    private static int parseDigits(String text, int start, int end) {
+        final String digits = text.substring(start, end);
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) {
+                throw new NumberFormatException(digits);
+            }
+        }
+        return Integer.parseInt(digits);
+    }
+}
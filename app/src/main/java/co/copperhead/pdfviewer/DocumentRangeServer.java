@@ -0,0 +1,132 @@
+package co.copperhead.pdfviewer;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Serves a seekable document to pdf.js, answering HTTP Range requests with 206 partial
+ * responses so the range loader only reads the parts of the file it actually needs.
+ */
+public class DocumentRangeServer {
+    private static final String TAG = "DocumentRangeServer";
+
+    private static final String MIME_TYPE = "application/pdf";
+
+    private final ParcelFileDescriptor mFileDescriptor;
+    private final FileChannel mChannel;
+    private final RangeResponder mResponder;
+
+    private DocumentRangeServer(ParcelFileDescriptor fileDescriptor, FileChannel channel, long size,
+            MappedByteBuffer mapping) {
+        mFileDescriptor = fileDescriptor;
+        mChannel = channel;
+        mResponder = new RangeResponder(channel, size, mapping);
+    }
+
+    /**
+     * Returns null if the document can't be opened as a regular, seekable file (for example a
+     * pipe handed out by a streaming provider), in which case the caller has to fall back to
+     * a sequential stream.
+     */
+    public static DocumentRangeServer open(ContentResolver resolver, Uri uri) {
+        final ParcelFileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = resolver.openFileDescriptor(uri, "r");
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "failed to open file descriptor", e);
+            return null;
+        }
+        if (fileDescriptor == null) {
+            return null;
+        }
+        final long size = fileDescriptor.getStatSize();
+        if (size < 0) {
+            closeQuietly(fileDescriptor);
+            return null;
+        }
+        final FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        return new DocumentRangeServer(fileDescriptor, channel, size, null);
+    }
+
+    /**
+     * Serves a local copy of a document from a memory mapping, returns null if it can't be
+     * opened.
+     */
+    public static DocumentRangeServer open(File file) {
+        final ParcelFileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to open local copy", e);
+            return null;
+        }
+        final long size = fileDescriptor.getStatSize();
+        final FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        MappedByteBuffer mapping = null;
+        if (size <= Integer.MAX_VALUE) {
+            try {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to map local copy, reading it instead", e);
+            }
+        }
+        return new DocumentRangeServer(fileDescriptor, channel, size, mapping);
+    }
+
+    public long getSize() {
+        return mResponder.getSize();
+    }
+
+    /**
+     * Returns how much of the document pdf.js has fetched, which it holds on to for as long
+     * as the document stays open.
+     */
+    public long getFetchedSize() {
+        return mResponder.getFetchedSize();
+    }
+
+    public WebResourceResponse serve(WebResourceRequest request) {
+        final RangeResponder.Response response =
+                mResponder.respond(getHeader(request.getRequestHeaders(), "Range"));
+        return new WebResourceResponse(MIME_TYPE, null, response.status, response.reason,
+                response.headers, response.data);
+    }
+
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {
+        }
+        closeQuietly(mFileDescriptor);
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fileDescriptor) {
+        try {
+            fileDescriptor.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
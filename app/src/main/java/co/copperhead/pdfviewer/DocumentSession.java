@@ -0,0 +1,170 @@
+package co.copperhead.pdfviewer;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Documents kept open in the background after another one was opened, so switching back to
+ * them doesn't have to load and parse them again. pdf.js keeps each one parked against the
+ * shared worker while this keeps what PdfViewer needs to pick up where it left off. The least
+ * recently viewed are evicted first once the documents take up more than the budget, but the
+ * previous document is always kept so switching back and forth between two never reloads.
+ * Only accessed on the main thread.
+ */
+public class DocumentSession {
+    // Charged for documents whose size isn't known
+    private static final long DEFAULT_DOCUMENT_SIZE = 8 * 1024 * 1024;
+
+    public static class Entry {
+        // Generation the document was opened with by WebViewRenderEngine
+        public final int generation;
+        public final Uri uri;
+        // Null for streamed documents, pdf.js has all of their bytes already
+        public final DocumentRangeServer rangeServer;
+        public final Uri seekableUri;
+        public final String documentHash;
+        public final DocumentMetadata metadata;
+        public final SearchIndex searchIndex;
+        public final ThumbnailCache thumbnailCache;
+        public final String fileName;
+        public final long fileSize;
+        public final int numPages;
+        public final int page;
+        public final float zoom;
+        public final int scrollX;
+        public final int scrollY;
+
+        public Entry(int generation, Uri uri, DocumentRangeServer rangeServer, Uri seekableUri,
+                String documentHash, DocumentMetadata metadata, SearchIndex searchIndex,
+                ThumbnailCache thumbnailCache, String fileName, long fileSize, int numPages,
+                int page, float zoom, int scrollX, int scrollY) {
+            this.generation = generation;
+            this.uri = uri;
+            this.rangeServer = rangeServer;
+            this.seekableUri = seekableUri;
+            this.documentHash = documentHash;
+            this.metadata = metadata;
+            this.searchIndex = searchIndex;
+            this.thumbnailCache = thumbnailCache;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.numPages = numPages;
+            this.page = page;
+            this.zoom = zoom;
+            this.scrollX = scrollX;
+            this.scrollY = scrollY;
+        }
+
+        /**
+         * Rough memory held for the document: the bytes pdf.js fetched, all of them for a
+         * streamed document.
+         */
+        long getSize() {
+            if (rangeServer != null) {
+                return rangeServer.getFetchedSize();
+            }
+            return fileSize >= 0 ? fileSize : DEFAULT_DOCUMENT_SIZE;
+        }
+
+        public String getTitle() {
+            if (fileName != null) {
+                return fileName;
+            }
+            final String segment = uri.getLastPathSegment();
+            return segment != null ? segment : uri.toString();
+        }
+    }
+
+    public interface EvictionListener {
+        void onEvicted(Entry entry);
+    }
+
+    private final long mBudget;
+    private final int mMaxDocuments;
+    private final EvictionListener mListener;
+    // By generation, least recently viewed first
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<>();
+
+    /**
+     * @param budget bytes parked documents and the one being viewed may add up to
+     * @param maxDocuments documents parked at most, whatever their size
+     */
+    public DocumentSession(long budget, int maxDocuments, EvictionListener listener) {
+        mBudget = budget;
+        mMaxDocuments = maxDocuments;
+        mListener = listener;
+    }
+
+    /**
+     * Keeps a document that is being switched away from, trim has to follow once the size of
+     * the one replacing it is known.
+     */
+    public void park(Entry entry) {
+        mEntries.put(entry.generation, entry);
+    }
+
+    /**
+     * Removes and returns a parked document to switch back to it, null if it has been evicted.
+     */
+    public Entry resume(int generation) {
+        return mEntries.remove(generation);
+    }
+
+    /**
+     * Returns the parked document opened from the URI, or null.
+     */
+    public Entry find(Uri uri) {
+        for (final Entry entry : mEntries.values()) {
+            if (entry.uri.equals(uri)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the parked documents, most recently viewed first.
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Evicts the least recently viewed documents until they fit in the budget alongside the
+     * document being viewed. The most recently viewed one is kept regardless, only memory
+     * pressure evicts it.
+     */
+    public void trim(long activeSize) {
+        long total = activeSize;
+        for (final Entry entry : mEntries.values()) {
+            total += entry.getSize();
+        }
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mEntries.size() > 1 && (total > mBudget || mEntries.size() > mMaxDocuments)) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            total -= entry.getSize();
+            mListener.onEvicted(entry);
+        }
+    }
+
+    public void evictAll() {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            mListener.onEvicted(entry);
+        }
+    }
+}
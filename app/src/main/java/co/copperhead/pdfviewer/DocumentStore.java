@@ -0,0 +1,382 @@
+package co.copperhead.pdfviewer;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Identifies documents by content independently of the URI they were opened from.
+ *
+ * A quick hash of the size and the first and last bytes is available almost immediately and
+ * maps to the full SHA-256 of the contents once that has been computed, so a document seen
+ * before is recognized before it has been read in full. Documents that can only be streamed
+ * are copied into app storage as they are read, later opens of the same document are served
+ * from the local copy.
+ */
+public class DocumentStore {
+    private static final String TAG = "DocumentStore";
+
+    // Bytes sampled from each end of the document for the quick hash
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int MAX_INDEX_ENTRIES = 256;
+    private static final String INDEX_FILE = "index";
+    private static final String COPY_SUFFIX = ".pdf";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public interface Listener {
+        /**
+         * Called on the thread reading the stream once its full hash is known.
+         */
+        void onDocumentHashed(String documentHash);
+    }
+
+    private final File mDirectory;
+    private final long mMaxCopySize;
+    // Quick hash to full hash, least recently used first
+    private final LinkedHashMap<String, String> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean mIndexLoaded;
+
+    public DocumentStore(File directory, long maxCopySize) {
+        mDirectory = directory;
+        mMaxCopySize = maxCopySize;
+    }
+
+    /**
+     * Hashes the size along with the first and last bytes of a seekable document, returning
+     * null if it can't be opened as one. Does disk I/O.
+     */
+    public static String computeQuickHash(ContentResolver resolver, Uri uri) {
+        try (ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(uri, "r")) {
+            if (fileDescriptor == null || fileDescriptor.getStatSize() < 0) {
+                return null;
+            }
+            final long size = fileDescriptor.getStatSize();
+            final FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(8).putLong(size).array());
+            final ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+            readFully(channel, buffer, 0);
+            buffer.flip();
+            digest.update(buffer);
+            if (size > SAMPLE_SIZE) {
+                buffer.clear();
+                readFully(channel, buffer, Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE));
+                buffer.flip();
+                digest.update(buffer);
+            }
+            return "q" + DocumentHash.toHex(digest.digest());
+        } catch (IOException | SecurityException | NoSuchAlgorithmException e) {
+            Log.e(TAG, "failed to sample document", e);
+            return null;
+        }
+    }
+
+    /**
+     * Quick hash of a document that can only be read sequentially: its first bytes along with
+     * the size and modification time reported by the provider. Returns null when the provider
+     * doesn't report both, the first bytes alone say too little about the rest.
+     */
+    public static String computeStreamQuickHash(ContentResolver resolver, Uri uri, byte[] head,
+            int length) {
+        long size = -1;
+        long lastModified = -1;
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                final int lastModifiedIndex = cursor.getColumnIndex(
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+                    size = cursor.getLong(sizeIndex);
+                }
+                if (lastModifiedIndex != -1 && !cursor.isNull(lastModifiedIndex)) {
+                    lastModified = cursor.getLong(lastModifiedIndex);
+                }
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "failed to query document", e);
+        }
+        if (size < 0 || lastModified <= 0) {
+            return null;
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(16).putLong(size).putLong(lastModified).array());
+            digest.update(head, 0, length);
+            return "s" + DocumentHash.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read == -1) {
+                return;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Returns the full hash last computed for a document with this quick hash, or null.
+     * Does disk I/O the first time.
+     */
+    public synchronized String getFullHash(String quickHash) {
+        loadIndex();
+        return mIndex.get(quickHash);
+    }
+
+    /**
+     * Records the full hash of a document. Does disk I/O.
+     */
+    public synchronized void putFullHash(String quickHash, String fullHash) {
+        loadIndex();
+        if (fullHash.equals(mIndex.put(quickHash, fullHash))) {
+            return;
+        }
+        final Iterator<Map.Entry<String, String>> iterator = mIndex.entrySet().iterator();
+        while (mIndex.size() > MAX_INDEX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        saveIndex();
+    }
+
+    /**
+     * Returns the local copy of a document if there is one. Does disk I/O.
+     */
+    public synchronized File getLocalCopy(String fullHash) {
+        final File file = new File(mDirectory, fullHash + COPY_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Wraps a document stream so it is hashed, and copied into the store if it fits, as it is
+     * read. The copy is only kept if the stream is read to the end.
+     */
+    public InputStream hashWhileReading(InputStream input, String quickHash, Listener listener) {
+        return new HashingInputStream(input, quickHash, listener);
+    }
+
+    private void loadIndex() {
+        if (mIndexLoaded) {
+            return;
+        }
+        mIndexLoaded = true;
+        final File file = new File(mDirectory, INDEX_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                if (space != -1) {
+                    mIndex.put(line.substring(0, space), line.substring(space + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to load index", e);
+        }
+    }
+
+    private void saveIndex() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "failed to create store directory");
+            return;
+        }
+        final File file = new File(mDirectory, INDEX_FILE);
+        final File temp = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+        try (Writer writer = new FileWriter(temp)) {
+            for (final Map.Entry<String, String> entry : mIndex.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save index", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private synchronized void addLocalCopy(File temp, String fullHash, long size) {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            long total = size;
+            for (final File file : files) {
+                if (file.getName().endsWith(COPY_SUFFIX)) {
+                    total += file.length();
+                }
+            }
+            for (final File file : files) {
+                if (total <= mMaxCopySize) {
+                    break;
+                }
+                if (file.getName().endsWith(COPY_SUFFIX)) {
+                    total -= file.length();
+                    file.delete();
+                }
+            }
+        }
+        if (!temp.renameTo(new File(mDirectory, fullHash + COPY_SUFFIX))) {
+            temp.delete();
+        }
+    }
+
+    private class HashingInputStream extends FilterInputStream {
+        private final String mQuickHash;
+        private final Listener mListener;
+        private final MessageDigest mDigest;
+        private File mTemp;
+        private OutputStream mCopy;
+        private long mSize;
+        private boolean mFinished;
+
+        HashingInputStream(InputStream input, String quickHash, Listener listener) {
+            super(input);
+            mQuickHash = quickHash;
+            mListener = listener;
+            try {
+                mDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            // Without a quick hash there would be no way to find the copy again
+            if (quickHash != null && (mDirectory.isDirectory() || mDirectory.mkdirs())) {
+                try {
+                    mTemp = File.createTempFile("copy", TEMP_SUFFIX, mDirectory);
+                    mCopy = new BufferedOutputStream(new FileOutputStream(mTemp));
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to create local copy", e);
+                    discardCopy();
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read == -1) {
+                finish();
+                return -1;
+            }
+            mDigest.update(b, off, read);
+            mSize += read;
+            if (mCopy != null) {
+                if (mSize > mMaxCopySize) {
+                    discardCopy();
+                } else {
+                    try {
+                        mCopy.write(b, off, read);
+                    } catch (IOException e) {
+                        Log.e(TAG, "failed to write local copy", e);
+                        discardCopy();
+                    }
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing from the hash
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            final int read = read(buffer, 0, buffer.length);
+            return Math.max(0, read);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!mFinished) {
+                discardCopy();
+            }
+        }
+
+        private void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            final String fullHash = DocumentHash.toHex(mDigest.digest());
+            if (mCopy != null) {
+                try {
+                    mCopy.close();
+                    addLocalCopy(mTemp, fullHash, mSize);
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to write local copy", e);
+                    mTemp.delete();
+                }
+                mCopy = null;
+            }
+            if (mQuickHash != null) {
+                putFullHash(mQuickHash, fullHash);
+            }
+            mListener.onDocumentHashed(fullHash);
+        }
+
+        private void discardCopy() {
+            if (mCopy != null) {
+                try {
+                    mCopy.close();
+                } catch (IOException ignored) {
+                }
+                mCopy = null;
+            }
+            if (mTemp != null) {
+                mTemp.delete();
+                mTemp = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package co.copperhead.pdfviewer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PDF of full page images straight to a stream, one page at a time, so memory use
+ * doesn't grow with the number of pages. Unlike PdfDocument, which holds every finished page
+ * until it is written out, only the page being added is ever held.
+ *
+ * Images are stored losslessly as deflated 8-bit RGB. The output stream is flushed but never
+ * closed, it belongs to the caller.
+ */
+class ImagePdfWriter {
+    // Rows of pixels fetched and compressed at a time
+    private static final int BAND_HEIGHT = 64;
+
+    /**
+     * Pixels of a page image, in the 0xAARRGGBB form Bitmap.getPixels returns.
+     */
+    interface Image {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Copies count rows starting at row y into pixels, packed with a stride of the width.
+         */
+        void getRows(int[] pixels, int y, int count);
+    }
+
+    private final CountingOutputStream mOutput;
+    // Offsets of the objects written so far, by object number - 1
+    private final List<Long> mOffsets = new ArrayList<>();
+    private final StringBuilder mKids = new StringBuilder();
+    private int mPageCount;
+
+    ImagePdfWriter(OutputStream output) throws IOException {
+        mOutput = new CountingOutputStream(output);
+        // The catalog and page tree are written last but numbered first
+        mOffsets.add(null);
+        mOffsets.add(null);
+        // Binary marker comment so tools treat the file as binary
+        write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+    }
+
+    /**
+     * Adds a page of the given size in points, showing the image in the given area. The area
+     * is in points from the top left corner of the page.
+     */
+    void addPage(float pageWidth, float pageHeight, float left, float top, float width,
+            float height, Image image) throws IOException {
+        final int imageNumber = beginObject();
+        final int lengthNumber = imageNumber + 1;
+        write("<< /Type /XObject /Subtype /Image /Width " + image.getWidth() + " /Height " +
+                image.getHeight() + " /ColorSpace /DeviceRGB /BitsPerComponent 8" +
+                " /Filter /FlateDecode /Length " + lengthNumber + " 0 R >>\nstream\n");
+        final long start = mOutput.getCount();
+        writePixels(image);
+        final long length = mOutput.getCount() - start;
+        write("\nendstream\nendobj\n");
+
+        beginObject();
+        write(length + "\nendobj\n");
+
+        // PDF space starts at the bottom left corner
+        final String content = "q " + format(width) + " 0 0 " + format(height) + " " +
+                format(left) + " " + format(pageHeight - top - height) + " cm /Im0 Do Q\n";
+        final int contentNumber = beginObject();
+        write("<< /Length " + content.length() + " >>\nstream\n" + content +
+                "endstream\nendobj\n");
+
+        final int pageNumber = beginObject();
+        write("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + format(pageWidth) + " " +
+                format(pageHeight) + "] /Resources << /XObject << /Im0 " + imageNumber +
+                " 0 R >> >> /Contents " + contentNumber + " 0 R >>\nendobj\n");
+        mKids.append(pageNumber).append(" 0 R ");
+        mPageCount++;
+        mOutput.flush();
+    }
+
+    /**
+     * Writes the page tree, catalog and cross-reference table, completing the document.
+     */
+    void finish() throws IOException {
+        mOffsets.set(1, mOutput.getCount());
+        write("2 0 obj\n<< /Type /Pages /Kids [" + mKids + "] /Count " + mPageCount +
+                " >>\nendobj\n");
+        mOffsets.set(0, mOutput.getCount());
+        write("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+        final long xref = mOutput.getCount();
+        final StringBuilder table = new StringBuilder("xref\n0 " + (mOffsets.size() + 1) +
+                "\n0000000000 65535 f \n");
+        for (final long offset : mOffsets) {
+            table.append(String.format(Locale.ROOT, "%010d 00000 n \n", offset));
+        }
+        write(table.toString());
+        write("trailer\n<< /Size " + (mOffsets.size() + 1) + " /Root 1 0 R >>\nstartxref\n" +
+                xref + "\n%%EOF\n");
+        mOutput.flush();
+    }
+
+    private int beginObject() throws IOException {
+        mOffsets.add(mOutput.getCount());
+        final int number = mOffsets.size();
+        write(number + " 0 obj\n");
+        return number;
+    }
+
+    private void writePixels(Image image) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] pixels = new int[width * Math.min(BAND_HEIGHT, height)];
+        final byte[] rgb = new byte[pixels.length * 3];
+        final Deflater deflater = new Deflater();
+        try {
+            // Finishing the deflater stream must leave the output open
+            final DeflaterOutputStream deflated = new DeflaterOutputStream(
+                    new FilterOutputStream(mOutput) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    }, deflater, 65536);
+            for (int y = 0; y < height; y += BAND_HEIGHT) {
+                final int rows = Math.min(BAND_HEIGHT, height - y);
+                image.getRows(pixels, y, rows);
+                final int count = rows * width;
+                for (int i = 0, j = 0; i < count; i++) {
+                    final int pixel = pixels[i];
+                    rgb[j++] = (byte) (pixel >> 16);
+                    rgb[j++] = (byte) (pixel >> 8);
+                    rgb[j++] = (byte) pixel;
+                }
+                deflated.write(rgb, 0, count * 3);
+            }
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void write(String text) throws IOException {
+        mOutput.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String format(float value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
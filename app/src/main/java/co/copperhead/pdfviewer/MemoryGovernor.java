@@ -0,0 +1,67 @@
+package co.copperhead.pdfviewer;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+
+/**
+ * Maps memory pressure reported by the system onto the eviction levels understood by the
+ * render engines and caches, and sizes the budgets for rendered surfaces and open documents.
+ */
+public final class MemoryGovernor {
+    public static final int TRIM_NONE = 0;
+    // Stop speculative work like prefetching, keeping everything rendered and cached
+    public static final int TRIM_BACKGROUND_WORK = 1;
+    // Drop rendered surfaces that aren't on screen
+    public static final int TRIM_OFFSCREEN = 2;
+    // Also release parsed document state and shrink caches
+    public static final int TRIM_CACHES = 3;
+    // Keep only what is needed to show the current page
+    public static final int TRIM_ALL = 4;
+
+    // Fraction of the app's memory class rendered surfaces may take up
+    private static final int SURFACE_BUDGET_DIVISOR = 2;
+    // Fraction of it the documents kept open in pdf.js may take up, counted by bytes fetched
+    private static final int SESSION_BUDGET_DIVISOR = 2;
+
+    private MemoryGovernor() {
+    }
+
+    /**
+     * Returns the eviction level for a level passed to onTrimMemory.
+     */
+    public static int fromTrimLevel(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return TRIM_ALL;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return TRIM_CACHES;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return TRIM_OFFSCREEN;
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                // Sent on every switch to another app, which usually comes straight back to
+                // the page as it was
+                return TRIM_BACKGROUND_WORK;
+            default:
+                return level > ComponentCallbacks2.TRIM_MEMORY_COMPLETE ? TRIM_ALL : TRIM_NONE;
+        }
+    }
+
+    /**
+     * Bytes of canvas backing stores viewer.js may keep, scaled from the memory class since
+     * the WebView renderer process is held to similar limits on the same device.
+     */
+    public static long getSurfaceBudget(ActivityManager activityManager) {
+        return (long) activityManager.getMemoryClass() * 1024 * 1024 / SURFACE_BUDGET_DIVISOR;
+    }
+
+    /**
+     * Bytes of documents, counting the one being viewed, that may be kept open for switching
+     * between them.
+     */
+    public static long getSessionBudget(ActivityManager activityManager) {
+        return (long) activityManager.getMemoryClass() * 1024 * 1024 / SESSION_BUDGET_DIVISOR;
+    }
+}
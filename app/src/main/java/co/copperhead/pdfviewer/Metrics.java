@@ -0,0 +1,131 @@
+package co.copperhead.pdfviewer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of rendering pipeline measurements: a histogram of durations per stage plus
+ * counters for bytes served to pdf.js and cancelled renders.
+ */
+public class Metrics {
+    public static final String STAGE_TIME_TO_FIRST_PAGE = "timeToFirstPage";
+
+    // Samples kept per stage, older ones are overwritten
+    private static final int MAX_SAMPLES = 1024;
+
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mCancellations = new AtomicLong();
+
+    public void record(String stage, double millis) {
+        synchronized (mHistograms) {
+            Histogram histogram = mHistograms.get(stage);
+            if (histogram == null) {
+                histogram = new Histogram();
+                mHistograms.put(stage, histogram);
+            }
+            histogram.add(millis);
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+    }
+
+    public void addCancellation() {
+        mCancellations.incrementAndGet();
+    }
+
+    public InputStream countBytes(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    addBytesRead(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    addBytesRead(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    public String toSummary() {
+        final StringBuilder summary = new StringBuilder();
+        synchronized (mHistograms) {
+            for (final Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                final Histogram histogram = entry.getValue();
+                summary.append(String.format(Locale.ROOT,
+                        "\n%s (n=%d):\np50 %.1f ms, p95 %.1f ms, p99 %.1f ms\n", entry.getKey(),
+                        histogram.getCount(), histogram.getPercentile(50),
+                        histogram.getPercentile(95), histogram.getPercentile(99)));
+            }
+        }
+        summary.append(String.format(Locale.ROOT, "\nbytesRead:\n%d\n", mBytesRead.get()));
+        summary.append(String.format(Locale.ROOT, "\ncancellations:\n%d\n", mCancellations.get()));
+        return summary.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        final JSONObject json = new JSONObject();
+        final JSONObject stages = new JSONObject();
+        synchronized (mHistograms) {
+            for (final Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                final Histogram histogram = entry.getValue();
+                final JSONObject stage = new JSONObject();
+                stage.put("count", histogram.getCount());
+                stage.put("p50", histogram.getPercentile(50));
+                stage.put("p95", histogram.getPercentile(95));
+                stage.put("p99", histogram.getPercentile(99));
+                stage.put("max", histogram.getPercentile(100));
+                stages.put(entry.getKey(), stage);
+            }
+        }
+        json.put("stages", stages);
+        json.put("bytesRead", mBytesRead.get());
+        json.put("cancellations", mCancellations.get());
+        return json;
+    }
+
+    private static class Histogram {
+        private final double[] mSamples = new double[MAX_SAMPLES];
+        private int mCount;
+
+        void add(double value) {
+            mSamples[mCount % MAX_SAMPLES] = value;
+            mCount++;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        double getPercentile(int percentile) {
+            final int size = Math.min(mCount, MAX_SAMPLES);
+            if (size == 0) {
+                return 0;
+            }
+            final double[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(percentile / 100.0 * size);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+}
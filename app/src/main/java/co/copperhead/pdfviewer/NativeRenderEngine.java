@@ -0,0 +1,384 @@
+package co.copperhead.pdfviewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.pdf.PdfRenderer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
+import android.widget.ImageView;
+import android.widget.ScrollView;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders with the platform PdfRenderer straight into bitmaps shown by an ImageView. Two
+ * bitmaps are recycled between renders: one on screen and one being drawn into.
+ *
+ * Pages are rendered whole within a pixel budget. When the zoom asks for more than that, the
+ * whole page is stretched from a budget sized bitmap and the visible region is rendered sharp
+ * on top of it, following the scroll position.
+ */
+public class NativeRenderEngine implements RenderEngine {
+    private static final String TAG = "NativeRenderEngine";
+
+    public static final String NAME = "PdfRenderer";
+
+    // 16MB per ARGB_8888 bitmap, the same budget as PageRasterizer
+    private static final int MAX_PIXELS = 4 * 1024 * 1024;
+    // Waits for scrolling to settle before rendering the visible region
+    private static final long DETAIL_DELAY_MS = 100;
+
+    private final Callback mCallback;
+    private final float mDensity;
+    private final ScrollView mView;
+    private final HorizontalScrollView mHorizontalScrollView;
+    private final FrameLayout mPageLayout;
+    private final ImageView mImageView;
+    private final ImageView mDetailView;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Bumped for every request so stale renders queued behind it are skipped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Bumped for every visible region render, which a new one makes stale
+    private final AtomicInteger mDetailGeneration = new AtomicInteger();
+
+    // Only accessed on the executor thread
+    private ParcelFileDescriptor mFileDescriptor;
+    private PdfRenderer mRenderer;
+
+    // Guarded by this
+    private Bitmap mSpareBitmap;
+    // Only accessed on the main thread
+    private Bitmap mShownBitmap;
+    private Bitmap mDetailBitmap;
+    private int mPage;
+    // Scale of the shown page, 0 when it's rendered whole at full resolution
+    private float mDetailScale;
+    private int mPageWidth;
+    private int mPageHeight;
+
+    private final Runnable mDetailRunnable = new Runnable() {
+        @Override
+        public void run() {
+            renderDetail();
+        }
+    };
+
+    public NativeRenderEngine(Context context, Callback callback) {
+        mCallback = callback;
+        mDensity = context.getResources().getDisplayMetrics().density;
+
+        mImageView = new ImageView(context);
+        mImageView.setScaleType(ImageView.ScaleType.FIT_XY);
+        mDetailView = new ImageView(context);
+        mDetailView.setScaleType(ImageView.ScaleType.FIT_XY);
+        mDetailView.setVisibility(View.GONE);
+        mPageLayout = new FrameLayout(context);
+        mPageLayout.addView(mImageView, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        mPageLayout.addView(mDetailView, new FrameLayout.LayoutParams(0, 0));
+        mHorizontalScrollView = new HorizontalScrollView(context);
+        mHorizontalScrollView.addView(mPageLayout, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        mView = new ScrollView(context);
+        mView.setBackgroundColor(Color.DKGRAY);
+        mView.addView(mHorizontalScrollView, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+        final View.OnScrollChangeListener scrollListener = new View.OnScrollChangeListener() {
+            @Override
+            public void onScrollChange(View v, int scrollX, int scrollY, int oldScrollX,
+                    int oldScrollY) {
+                if (mDetailScale != 0) {
+                    mHandler.removeCallbacks(mDetailRunnable);
+                    mHandler.postDelayed(mDetailRunnable, DETAIL_DELAY_MS);
+                }
+            }
+        };
+        mView.setOnScrollChangeListener(scrollListener);
+        mHorizontalScrollView.setOnScrollChangeListener(scrollListener);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public View getView() {
+        return mView;
+    }
+
+    @Override
+    public void open(final Uri uri) {
+        mGeneration.incrementAndGet();
+        final Context context = mView.getContext().getApplicationContext();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeRenderer();
+                int pageCount = -1;
+                try {
+                    mFileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+                    if (mFileDescriptor != null) {
+                        mRenderer = new PdfRenderer(mFileDescriptor);
+                        pageCount = mRenderer.getPageCount();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "failed to open document", e);
+                    closeRenderer();
+                }
+                final int numPages = pageCount;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (numPages < 0) {
+                            mCallback.onDocumentFailed();
+                        } else {
+                            mCallback.onDocumentLoaded(numPages);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void renderPage(final int page, final float zoom) {
+        final int generation = mGeneration.incrementAndGet();
+        mDetailGeneration.incrementAndGet();
+        mHandler.removeCallbacks(mDetailRunnable);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get() || mRenderer == null ||
+                        page < 1 || page > mRenderer.getPageCount()) {
+                    return;
+                }
+                final long start = SystemClock.elapsedRealtime();
+                // pdf.js renders 1 CSS pixel per point at 100%, match its page size
+                final float scale = zoom * mDensity;
+                final int width;
+                final int height;
+                final Bitmap bitmap;
+                try (PdfRenderer.Page pdfPage = mRenderer.openPage(page - 1)) {
+                    width = Math.max(1, Math.round(pdfPage.getWidth() * scale));
+                    height = Math.max(1, Math.round(pdfPage.getHeight() * scale));
+                    bitmap = render(pdfPage, scale, 0, 0, width, height);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    onRenderFailed(generation, e);
+                    return;
+                }
+                final boolean detailed = bitmap.getWidth() < width;
+                final double millis = SystemClock.elapsedRealtime() - start;
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration.get()) {
+                            recycleBitmap(bitmap);
+                            return;
+                        }
+                        hideDetail();
+                        mPage = page;
+                        mPageWidth = width;
+                        mPageHeight = height;
+                        mDetailScale = detailed ? scale : 0;
+                        mImageView.setImageBitmap(bitmap);
+                        mImageView.setLayoutParams(new FrameLayout.LayoutParams(width, height));
+                        if (mShownBitmap != null) {
+                            recycleBitmap(mShownBitmap);
+                        }
+                        mShownBitmap = bitmap;
+                        mCallback.onPageRendered(millis);
+                        if (detailed) {
+                            // Layout has to catch up with the new size before the visible
+                            // region is known
+                            mHandler.post(mDetailRunnable);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Renders the visible region of a page too large to render whole
+    private void renderDetail() {
+        if (mDetailScale == 0 || mView.getWidth() == 0 || mView.getHeight() == 0) {
+            return;
+        }
+        final int left = Math.min(mHorizontalScrollView.getScrollX(), mPageWidth - 1);
+        final int top = Math.min(mView.getScrollY(), mPageHeight - 1);
+        final int width = Math.min(mView.getWidth(), mPageWidth - left);
+        final int height = Math.min(mView.getHeight(), mPageHeight - top);
+        final int page = mPage;
+        final float scale = mDetailScale;
+        final int generation = mGeneration.get();
+        final int detailGeneration = mDetailGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get() || detailGeneration != mDetailGeneration.get() ||
+                        mRenderer == null) {
+                    return;
+                }
+                final Bitmap bitmap;
+                try (PdfRenderer.Page pdfPage = mRenderer.openPage(page - 1)) {
+                    bitmap = render(pdfPage, scale, left, top, width, height);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    onRenderFailed(generation, e);
+                    return;
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration.get() ||
+                                detailGeneration != mDetailGeneration.get()) {
+                            recycleBitmap(bitmap);
+                            return;
+                        }
+                        hideDetail();
+                        final FrameLayout.LayoutParams params =
+                                new FrameLayout.LayoutParams(width, height);
+                        params.leftMargin = left;
+                        params.topMargin = top;
+                        mDetailView.setLayoutParams(params);
+                        mDetailView.setImageBitmap(bitmap);
+                        mDetailView.setVisibility(View.VISIBLE);
+                        mDetailBitmap = bitmap;
+                    }
+                });
+            }
+        });
+    }
+
+    private void hideDetail() {
+        mDetailView.setVisibility(View.GONE);
+        mDetailView.setImageDrawable(null);
+        if (mDetailBitmap != null) {
+            recycleBitmap(mDetailBitmap);
+            mDetailBitmap = null;
+        }
+    }
+
+    /**
+     * Renders the width by height region at left, top of the page scaled by scale, into a
+     * bitmap scaled down further if needed to stay within MAX_PIXELS.
+     */
+    private Bitmap render(PdfRenderer.Page pdfPage, float scale, int left, int top, int width,
+            int height) {
+        float fit = 1;
+        final long pixels = (long) width * height;
+        if (pixels > MAX_PIXELS) {
+            fit = (float) Math.sqrt((double) MAX_PIXELS / pixels);
+        }
+        final Bitmap bitmap = obtainBitmap(Math.max(1, (int) (width * fit)),
+                Math.max(1, (int) (height * fit)));
+        bitmap.eraseColor(Color.WHITE);
+        final Matrix transform = new Matrix();
+        transform.setScale(scale, scale);
+        transform.postTranslate(-left, -top);
+        transform.postScale(fit, fit);
+        pdfPage.render(bitmap, null, transform, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+        return bitmap;
+    }
+
+    private void onRenderFailed(final int generation, Throwable e) {
+        Log.e(TAG, "failed to render page", e);
+        // Whatever memory can be spared for the next attempt
+        trimMemory(MemoryGovernor.TRIM_CACHES);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    mCallback.onPageFailed();
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void trimMemory(int level) {
+        // The shown bitmap is all that's needed, the spare one is only there to save an
+        // allocation on the next render
+        if (level >= MemoryGovernor.TRIM_CACHES && mSpareBitmap != null) {
+            mSpareBitmap.recycle();
+            mSpareBitmap = null;
+        }
+    }
+
+    private synchronized Bitmap obtainBitmap(int width, int height) {
+        final Bitmap spare = mSpareBitmap;
+        mSpareBitmap = null;
+        if (spare != null && spare.getAllocationByteCount() >= (long) width * height * 4) {
+            spare.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            return spare;
+        }
+        if (spare != null) {
+            spare.recycle();
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private synchronized void recycleBitmap(Bitmap bitmap) {
+        if (mSpareBitmap == null) {
+            mSpareBitmap = bitmap;
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    private void closeRenderer() {
+        if (mRenderer != null) {
+            mRenderer.close();
+            mRenderer = null;
+        }
+        if (mFileDescriptor != null) {
+            try {
+                mFileDescriptor.close();
+            } catch (IOException ignored) {
+            }
+            mFileDescriptor = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        mGeneration.incrementAndGet();
+        mDetailGeneration.incrementAndGet();
+        mHandler.removeCallbacks(mDetailRunnable);
+        mDetailScale = 0;
+        hideDetail();
+        mImageView.setImageDrawable(null);
+        if (mShownBitmap != null) {
+            recycleBitmap(mShownBitmap);
+            mShownBitmap = null;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeRenderer();
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        close();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,185 @@
+package co.copperhead.pdfviewer;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU disk cache of rendered pages. Entries are the compressed bitmaps produced by
+ * viewer.js, keyed by document hash, page, zoom and device pixel ratio. The directory is
+ * scanned on a background thread after construction, or by the first use if that comes first.
+ */
+public class PageCache {
+    private static final String TAG = "PageCache";
+
+    private static final String SUFFIX = ".png";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private int mHits;
+    private int mMisses;
+    private boolean mLoaded;
+
+    public PageCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        BackgroundExecutor.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    private synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "failed to create cache directory");
+        }
+
+        // Rebuild the LRU order from the last access times left on disk
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    mEntries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                    mSize += file.length();
+                }
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    public static String getKey(String documentHash, int page, float zoom, float ratio) {
+        return String.format("%s-%d-%s-%s", documentHash, page,
+                Integer.toHexString(Float.floatToIntBits(zoom)),
+                Integer.toHexString(Float.floatToIntBits(ratio)));
+    }
+
+    /**
+     * Returns the Base64 encoded entry, or null on a miss.
+     */
+    public synchronized String get(String key) {
+        load();
+        if (mEntries.get(key) == null) {
+            mMisses++;
+            return null;
+        }
+        final byte[] data = read(key);
+        if (data == null) {
+            mMisses++;
+            return null;
+        }
+        getFile(key).setLastModified(System.currentTimeMillis());
+        mHits++;
+        return Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    /**
+     * Returns the decoded entry, or null on a miss, without counting as a use of it.
+     */
+    public synchronized byte[] peek(String key) {
+        load();
+        if (!mEntries.containsKey(key)) {
+            return null;
+        }
+        return read(key);
+    }
+
+    private byte[] read(String key) {
+        final File file = getFile(key);
+        final byte[] data = new byte[(int) file.length()];
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = inputStream.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read cache entry", e);
+            remove(key);
+            return null;
+        }
+        return data;
+    }
+
+    public synchronized void put(String key, String base64) {
+        final byte[] data;
+        try {
+            data = Base64.decode(base64, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "invalid cache entry", e);
+            return;
+        }
+        if (data.length > mMaxSize) {
+            return;
+        }
+        load();
+        remove(key);
+        final File file = getFile(key);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write cache entry", e);
+            file.delete();
+            return;
+        }
+        mEntries.put(key, (long) data.length);
+        mSize += data.length;
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized void trimToSize(long maxSize) {
+        load();
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            getFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    public synchronized float getHitRate() {
+        final int total = mHits + mMisses;
+        return total == 0 ? 0 : (float) mHits / total;
+    }
+
+    private void remove(String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) {
+            getFile(key).delete();
+            mSize -= size;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+}
@@ -0,0 +1,187 @@
+package co.copperhead.pdfviewer;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Width, height, rotation and label of every page held in primitive arrays, so layout and
+ * navigation can look up any page without waiting on pdf.js. Built once by viewer.js in the
+ * background and persisted per document hash.
+ */
+public class PageIndex {
+    private static final String TAG = "PageIndex";
+
+    private static final int VERSION = 1;
+    // Floats per page in the geometry exchanged with viewer.js: width, height, rotation
+    private static final int GEOMETRY_STRIDE = 3;
+
+    // In points at the page's rotation, as pdf.js lays it out at 100%
+    private final float[] mWidths;
+    private final float[] mHeights;
+    // Degrees clockwise, a multiple of 90
+    private final int[] mRotations;
+    // Null if the document doesn't define labels
+    private final String[] mLabels;
+
+    // Geometry in the form viewer.js reads it, kept once encoded
+    private String mEncodedGeometry;
+
+    private PageIndex(float[] widths, float[] heights, int[] rotations, String[] labels) {
+        mWidths = widths;
+        mHeights = heights;
+        mRotations = rotations;
+        mLabels = labels;
+    }
+
+    /**
+     * Reads the index sent by viewer.js: base64 of width, height and rotation for each page as
+     * little endian 32-bit floats, and the labels as a JSON array or null.
+     */
+    public static PageIndex decode(String geometry, String labels) throws JSONException {
+        final FloatBuffer floats = ByteBuffer.wrap(Base64.decode(geometry, Base64.DEFAULT))
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        final int numPages = floats.remaining() / GEOMETRY_STRIDE;
+        final float[] widths = new float[numPages];
+        final float[] heights = new float[numPages];
+        final int[] rotations = new int[numPages];
+        for (int i = 0; i < numPages; i++) {
+            widths[i] = floats.get();
+            heights[i] = floats.get();
+            rotations[i] = Math.round(floats.get());
+        }
+
+        String[] pageLabels = null;
+        final JSONArray array = labels == null || "null".equals(labels) ? null : new JSONArray(labels);
+        if (array != null && array.length() == numPages) {
+            pageLabels = new String[numPages];
+            for (int i = 0; i < numPages; i++) {
+                pageLabels[i] = array.getString(i);
+            }
+        }
+        final PageIndex index = new PageIndex(widths, heights, rotations, pageLabels);
+        index.mEncodedGeometry = geometry;
+        return index;
+    }
+
+    /**
+     * Returns the geometry in the form decode reads it.
+     */
+    public synchronized String encodeGeometry() {
+        if (mEncodedGeometry == null) {
+            final ByteBuffer buffer = ByteBuffer.allocate(mWidths.length * GEOMETRY_STRIDE * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < mWidths.length; i++) {
+                buffer.putFloat(mWidths[i]);
+                buffer.putFloat(mHeights[i]);
+                buffer.putFloat(mRotations[i]);
+            }
+            mEncodedGeometry = Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+        }
+        return mEncodedGeometry;
+    }
+
+    public int getNumPages() {
+        return mWidths.length;
+    }
+
+    public float getWidth(int page) {
+        return mWidths[page - 1];
+    }
+
+    public float getHeight(int page) {
+        return mHeights[page - 1];
+    }
+
+    public int getRotation(int page) {
+        return mRotations[page - 1];
+    }
+
+    /**
+     * Returns the labels of all pages in order, null if the document doesn't define any.
+     */
+    public String[] getLabels() {
+        return mLabels;
+    }
+
+    public void save(File file) {
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "failed to create index directory");
+            return;
+        }
+        final File temp = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(VERSION);
+            output.writeInt(mWidths.length);
+            for (int i = 0; i < mWidths.length; i++) {
+                output.writeFloat(mWidths[i]);
+                output.writeFloat(mHeights[i]);
+                output.writeShort(mRotations[i]);
+            }
+            output.writeBoolean(mLabels != null);
+            if (mLabels != null) {
+                for (final String label : mLabels) {
+                    output.writeUTF(label);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save index", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the index stored in the file, or null if there is none. Does disk I/O.
+     */
+    public static PageIndex load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != VERSION) {
+                return null;
+            }
+            final int numPages = input.readInt();
+            final float[] widths = new float[numPages];
+            final float[] heights = new float[numPages];
+            final int[] rotations = new int[numPages];
+            for (int i = 0; i < numPages; i++) {
+                widths[i] = input.readFloat();
+                heights[i] = input.readFloat();
+                rotations[i] = input.readShort();
+            }
+            String[] labels = null;
+            if (input.readBoolean()) {
+                labels = new String[numPages];
+                for (int i = 0; i < numPages; i++) {
+                    labels[i] = input.readUTF();
+                }
+            }
+            return new PageIndex(widths, heights, rotations, labels);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to load index", e);
+            return null;
+        }
+    }
+}
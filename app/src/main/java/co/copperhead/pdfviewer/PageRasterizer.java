@@ -0,0 +1,219 @@
+package co.copperhead.pdfviewer;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.pdf.PdfRenderer;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rasterizes a list of pages for printing and export and hands them to a sink in order. A
+ * single PdfRenderer renders on a background thread while the sink encodes and writes the
+ * previous page, so the two stages overlap. More renderers wouldn't help: PdfRenderer
+ * serializes native calls on a process-wide lock, which the native engine contends for too.
+ * Rendering runs only a page ahead of the sink so memory use doesn't grow with the number of
+ * pages.
+ */
+public class PageRasterizer {
+    // Rendered pages that may be waiting for the sink at once, one being handed over while
+    // the next renders
+    private static final int WINDOW = 2;
+    // Keeps a single page within a sane allocation whatever the page size and resolution
+    private static final int MAX_PIXELS = 4 * 1024 * 1024;
+
+    public interface Sink {
+        /**
+         * Called on the thread running rasterize, in page order. The bitmap is recycled once
+         * this returns.
+         */
+        void onPage(int page, Bitmap bitmap) throws IOException;
+    }
+
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "rasterizer");
+        }
+    };
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final int mDpi;
+    private final int mRenderMode;
+
+    /**
+     * @param uri a document that can be opened as a seekable file descriptor
+     * @param renderMode one of the PdfRenderer.Page render modes
+     */
+    public PageRasterizer(ContentResolver resolver, Uri uri, int dpi, int renderMode) {
+        mResolver = resolver;
+        mUri = uri;
+        mDpi = dpi;
+        mRenderMode = renderMode;
+    }
+
+    /**
+     * Renders the given pages, 1-based, and passes them to the sink. Blocks until every page
+     * has been handed over. Throws OperationCanceledException if the signal is cancelled
+     * first, pages already queued are dropped. The listener may be null.
+     */
+    public void rasterize(final int[] pages, Sink sink, ProgressListener listener,
+            CancellationSignal signal) throws IOException {
+        final ParcelFileDescriptor fileDescriptor = openFileDescriptor();
+        PdfRenderer renderer = null;
+        final ExecutorService executor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+        final List<Future<Bitmap>> futures = new ArrayList<>(pages.length);
+        try {
+            renderer = new PdfRenderer(fileDescriptor);
+
+            int submitted = 0;
+            for (int i = 0; i < pages.length; i++) {
+                signal.throwIfCanceled();
+                while (submitted < pages.length && submitted < i + WINDOW) {
+                    futures.add(executor.submit(new RenderTask(renderer, pages[submitted++], signal)));
+                }
+                final Bitmap bitmap = getResult(futures.get(i));
+                futures.set(i, null);
+                if (bitmap == null) {
+                    signal.throwIfCanceled();
+                }
+                try {
+                    sink.onPage(pages[i], bitmap);
+                } finally {
+                    bitmap.recycle();
+                }
+                if (listener != null) {
+                    listener.onProgress(i + 1, pages.length);
+                }
+            }
+        } finally {
+            // A render already running still uses the renderer, wait for it before closing
+            executor.shutdownNow();
+            awaitTermination(executor);
+            for (final Future<Bitmap> future : futures) {
+                if (future != null && future.isDone()) {
+                    recycleResult(future);
+                }
+            }
+            if (renderer != null) {
+                renderer.close();
+            }
+            try {
+                fileDescriptor.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private ParcelFileDescriptor openFileDescriptor() throws IOException {
+        final ParcelFileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = mResolver.openFileDescriptor(mUri, "r");
+        } catch (SecurityException e) {
+            throw new IOException(e);
+        }
+        if (fileDescriptor == null) {
+            throw new IOException("no file descriptor for " + mUri);
+        }
+        return fileDescriptor;
+    }
+
+    private static Bitmap getResult(Future<Bitmap> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void recycleResult(Future<Bitmap> future) {
+        try {
+            final Bitmap bitmap = future.get();
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        } catch (InterruptedException | ExecutionException | CancellationException ignored) {
+        }
+    }
+
+    private class RenderTask implements Callable<Bitmap> {
+        private final PdfRenderer mRenderer;
+        private final int mPage;
+        private final CancellationSignal mSignal;
+
+        RenderTask(PdfRenderer renderer, int page, CancellationSignal signal) {
+            mRenderer = renderer;
+            mPage = page;
+            mSignal = signal;
+        }
+
+        @Override
+        public Bitmap call() {
+            if (mSignal.isCanceled()) {
+                return null;
+            }
+            try (PdfRenderer.Page page = mRenderer.openPage(mPage - 1)) {
+                float scale = mDpi / 72f;
+                final float pixels = page.getWidth() * scale * page.getHeight() * scale;
+                if (pixels > MAX_PIXELS) {
+                    scale *= (float) Math.sqrt(MAX_PIXELS / pixels);
+                }
+                final Bitmap bitmap = Bitmap.createBitmap(
+                        Math.max(1, Math.round(page.getWidth() * scale)),
+                        Math.max(1, Math.round(page.getHeight() * scale)),
+                        Bitmap.Config.ARGB_8888);
+                bitmap.eraseColor(Color.WHITE);
+                page.render(bitmap, null, null, mRenderMode);
+                return bitmap;
+            }
+        }
+    }
+}
@@ -1,289 +1,445 @@
 package co.copperhead.pdfviewer;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.res.ColorStateList;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.print.PrintManager;
 import android.provider.OpenableColumns;
-import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.webkit.CookieManager;
-import android.webkit.JavascriptInterface;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
 
 import co.copperhead.pdfviewer.fragment.DocumentPropertiesFragment;
+import co.copperhead.pdfviewer.fragment.DocumentsFragment;
+import co.copperhead.pdfviewer.fragment.ExportPagesFragment;
 import co.copperhead.pdfviewer.fragment.JumpToPageFragment;
+import co.copperhead.pdfviewer.fragment.MetricsFragment;
+import co.copperhead.pdfviewer.fragment.OutlineFragment;
+import co.copperhead.pdfviewer.fragment.SearchFragment;
+import co.copperhead.pdfviewer.fragment.ThumbnailsFragment;
 
 public class PdfViewer extends Activity {
     private static final String TAG = "PdfViewer";
 
-    private static final int MIN_ZOOM_LEVEL = 0;
-    private static final int MAX_ZOOM_LEVEL = 4;
+    private static final float MIN_ZOOM = 0.5f;
+    private static final float MAX_ZOOM = 4f;
+    // Stops the zoom buttons snap to, pinching can land anywhere in between
+    private static final float[] ZOOM_STEPS = { 0.5f, 0.75f, 1f, 1.25f, 1.5f, 2f, 3f, 4f };
     private static final int ALPHA_LOW = 130;
     private static final int ALPHA_HIGH = 255;
     private static final int ACTION_OPEN_DOCUMENT_REQUEST_CODE = 1;
+    private static final int ACTION_EXPORT_PAGES_REQUEST_CODE = 2;
     private static final int STATE_LOADED = 1;
     private static final int STATE_END = 2;
     private static final String STATE_URI = "uri";
     private static final String STATE_PAGE = "page";
-    private static final String STATE_ZOOM_LEVEL = "zoomLevel";
+    private static final String STATE_ZOOM = "zoom";
+    private static final String STATE_CONTINUOUS = "continuous";
+    private static final String STATE_ENGINE = "engine";
     private static final int PADDING = 10;
+    private static final long PAGE_CACHE_SIZE = 64 * 1024 * 1024;
+    private static final int METADATA_CACHE_SIZE = 8;
+    private static final long THUMBNAIL_CACHE_SIZE = 16 * 1024 * 1024;
+    private static final int THUMBNAIL_MEMORY_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int THUMBNAIL_WIDTH_DP = 96;
+    private static final long DOCUMENT_STORE_SIZE = 128 * 1024 * 1024;
+    private static final int SESSION_MAX_DOCUMENTS = 6;
+
+    // Extracted metadata by document hash, survives the activity being recreated
+    private static final LruCache<String, DocumentMetadata> sMetadataCache =
+            new LruCache<>(METADATA_CACHE_SIZE);
+    // Keeps CMaps mapped for every document opened by the process
+    private static CMapCache sCMapCache;
 
     private WebView mWebView;
+    private FrameLayout mContainer;
+    private WebViewRenderEngine mWebViewEngine;
+    private NativeRenderEngine mNativeEngine;
+    private RenderEngine mEngine;
+    private String mEngineOverride;
+    private boolean mFirstPageRendered;
     private Uri mUri;
     public int mPage;
     public int mNumPages;
-    private int mZoomLevel = 2;
+    private float mZoom = 1f;
+    // Last scroll offset reported by viewer.js, in CSS pixels
+    private int mScrollX;
+    private int mScrollY;
+    // Device pixel ratio viewer.js renders with, reported along with cached pages
+    private volatile float mPixelRatio;
+    // Set while a freshly opened document waits for its hash to look up a saved position
+    private boolean mRestorePending;
+    private ReadingPositionStore mPositionStore;
+    // Page render saved with the position, shown until pdf.js has rendered the page itself
+    private ImageView mResumeImage;
+    private boolean mContinuous;
     private int mDocumentState;
-    private Channel mChannel;
-    private String mDocumentProperties;
-    private InputStream mInputStream;
+    // Set once pdf.js has loaded the document, only then can it be parked in the session
+    private boolean mDocumentLoaded;
+    private DocumentSession mSession;
+    private volatile DocumentMetadata mMetadata = new DocumentMetadata();
+    private volatile String mFileName;
+    private volatile long mFileSize = -1;
+    private volatile InputStream mInputStream;
+    // Replaced with a local copy from the network thread when a streamed document has one
+    private volatile DocumentRangeServer mRangeServer;
+    // Identifies the document streamed by the next document request, which consumes it
+    private volatile DocumentIdentification mStreamIdentification;
+    private DocumentStore mDocumentStore;
+    // The document or its local copy as something PdfRenderer can open, null while there is
+    // neither, used to rasterize pages for printing and export
+    private volatile Uri mSeekableUri;
+    // Incremented by every load so results for an earlier one can be told apart
+    private volatile int mLoadGeneration;
+    private PageCache mPageCache;
+    private PageCache mThumbnailDiskCache;
+    private volatile ThumbnailCache mThumbnailCache;
+    private volatile String mDocumentHash;
+    private volatile SearchIndex mSearchIndex = new SearchIndex();
+    private final Metrics mMetrics = new Metrics();
+    private long mLoadStartTime;
     private TextView mTextView;
     private Toast mToast;
 
-    private class Channel {
-        @JavascriptInterface
-        public int getPage() {
-            return mPage;
+    private final WebViewRenderEngine.Listener mBridgeListener = new WebViewRenderEngine.Listener() {
+        // Whether the document a message is about is still open. Checked after reading any
+        // per-document state, which is only replaced once the engine's generation moved on.
+        private boolean isCurrent(int generation) {
+            return generation == mWebViewEngine.getGeneration();
         }
 
-        @JavascriptInterface
-        public int getZoomLevel() {
-            return mZoomLevel;
+        @Override
+        public void onNumPages(final int numPages) {
+            final int generation = mWebViewEngine.getMessageGeneration();
+            final DocumentMetadata metadata = mMetadata;
+            if (!isCurrent(generation)) {
+                return;
+            }
+            metadata.setNumPages(numPages);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(generation)) {
+                        return;
+                    }
+                    mNumPages = numPages;
+                    mDocumentState = STATE_LOADED;
+                    mDocumentLoaded = true;
+                    invalidateOptionsMenu();
+                }
+            });
         }
 
-        @JavascriptInterface
-        public void setNumPages(int numPages) {
-            mNumPages = numPages;
+        @Override
+        public void onDocumentInfo(JSONObject info) {
+            final DocumentMetadata metadata = mMetadata;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
+            }
+            if (!metadata.isComplete()) {
+                metadata.setInfo(info);
+            }
         }
 
-        @JavascriptInterface
-        public void setDocumentProperties(final String properties) {
-            if (mDocumentProperties != null) {
-                throw new SecurityException("mDocumentProperties not null");
+        @Override
+        public void onOutline(JSONArray outline) {
+            final DocumentMetadata metadata = mMetadata;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
             }
-            new AsyncTask<Void, Void, Void>() {
-                private String formatProperty(String propertyName, String propertyValue) {
-                    if (TextUtils.isEmpty(propertyValue)) {
-                        return String.format("\n%s:\n-\n", propertyName);
-                    }
-                    return String.format("\n%s:\n%s\n", propertyName, propertyValue);
+            try {
+                if (!metadata.isComplete()) {
+                    metadata.setOutline(outline);
                 }
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
 
-                private String parseFileSize(long fileSize) {
-                    final double kb = fileSize / 1000;
-                    if (((long) kb) == 0) {
-                        return String.format("%s bytes", String.valueOf(fileSize));
-                    } else {
-                        final DecimalFormat format = new DecimalFormat("#.##");
-                        format.setRoundingMode(RoundingMode.CEILING);
-                        if (kb < 1000) {
-                            return String.format("%s kB (%s bytes)", format.format(kb), String.valueOf(fileSize));
-                        }
-                        return String.format("%s MB (%s bytes)", format.format(kb / 1000), String.valueOf(fileSize));
-                    }
+        @Override
+        public void onPageLabels(JSONArray labels) {
+            final DocumentMetadata metadata = mMetadata;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
+            }
+            try {
+                if (!metadata.isComplete()) {
+                    metadata.setPageLabels(labels);
                 }
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
 
-                private String parseDate(String dateToParse) {
-                    // No date property found
-                    if (dateToParse.equals("-")) {
-                        return "-";
-                    }
-
-                    // Date must at least contain a year
-                    final boolean dateHasPrefix = dateToParse.startsWith("D:");
-                    final int dateMinLength = dateHasPrefix ? 6 : 4;
-                    if (dateToParse.length() < dateMinLength || dateToParse.length() > 23) {
-                        Log.e(TAG, "Supplied date length mismatch");
-                        return getString(R.string.document_properties_invalid_date);
-                    }
-
-                    // Date can have a D: prefix
-                    if (dateHasPrefix) {
-                        dateToParse = dateToParse.substring(2);
-                    }
-
-                    // Calendar month starts at 0
-                    int year = 1970, month = 0, day = 1, hours = 0, minutes = 0;
-                    int seconds = 0, utRelOffset = 4;
-                    final Calendar calendar = Calendar.getInstance();
+        @Override
+        public void onMetadataFinished() {
+            final DocumentMetadata metadata = mMetadata;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
+            }
+            metadata.setComplete();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateDocumentState();
+                }
+            });
+        }
 
-                    // Year is mandatory
-                    try {
-                        final int parsedYear = Integer.valueOf(dateToParse.substring(0, 4));
-                        if (parsedYear <= calendar.get(Calendar.YEAR) && parsedYear > year) {
-                            year = parsedYear;
-                        }
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, e.getMessage());
-                        return getString(R.string.document_properties_invalid_date);
+        @Override
+        public void onPageChanged(final int page) {
+            final int generation = mWebViewEngine.getMessageGeneration();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(generation)) {
+                        return;
                     }
-                    // Those fields are optional
-                    try {
-                        month = Integer.valueOf(dateToParse.substring(4, 6)) - 1;
-                        utRelOffset += 2;
-                        day = Integer.valueOf(dateToParse.substring(6, 8));
-                        utRelOffset += 2;
-                        hours = Integer.valueOf(dateToParse.substring(8, 10));
-                        utRelOffset += 2;
-                        minutes = Integer.valueOf(dateToParse.substring(10, 12));
-                        utRelOffset += 2;
-                        seconds = Integer.valueOf(dateToParse.substring(12, 14));
-                        utRelOffset += 2;
-                    } catch (IndexOutOfBoundsException ignored) {
-                        // It is allowed for all fields except year to be missing
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Invalid date supplied");
-                        return getString(R.string.document_properties_invalid_date);
+                    if (mContinuous && page >= 1 && page <= mNumPages && page != mPage) {
+                        mPage = page;
+                        showPageNumber();
+                        savePosition();
                     }
+                }
+            });
+        }
 
-                    // Perform basic date validation
-                    if ((month < 0 || month > 11) || (day < 1 || day > 31) ||
-                            (hours < 0 || hours > 23) || (minutes < 0 || minutes > 59) ||
-                            (seconds < 0 || seconds > 59)) {
-                        Log.e(TAG, "Date validation failed");
-                        return getString(R.string.document_properties_invalid_date);
+        @Override
+        public void onScrollChanged(final int scrollX, final int scrollY) {
+            final int generation = mWebViewEngine.getMessageGeneration();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(generation)) {
+                        return;
                     }
+                    mScrollX = scrollX;
+                    mScrollY = scrollY;
+                    savePosition();
+                }
+            });
+        }
 
-                    int offsetHours = 0, offsetMinutes = 0, combinedOffset = 0;
-                    String utRel = "";
+        @Override
+        public void onStoreCachedPage(int page, float zoom, float ratio, String data) {
+            mPixelRatio = ratio;
+            final String documentHash = mDocumentHash;
+            if (documentHash != null && isCurrent(mWebViewEngine.getMessageGeneration())) {
+                mPageCache.put(PageCache.getKey(documentHash, page, zoom, ratio), data);
+            }
+        }
 
-                    try {
-                        utRel = String.valueOf(dateToParse.charAt(utRelOffset));
-                        if (utRel.equals("+") || utRel.equals("-") || utRel.equals("Z")) {
-                            offsetHours = Integer.parseInt(dateToParse.substring(15, 17));
-                            final String rawOffsetMinutes = dateToParse.substring(18, 20);
-                            offsetMinutes = Integer.parseInt(rawOffsetMinutes);
-                            combinedOffset = Integer.valueOf(String.format("%s%s%s", utRel, offsetHours, rawOffsetMinutes));
-                        } else {
-                            offsetHours = Integer.parseInt(dateToParse.substring(14, 16));
-                            final String rawOffsetMinutes = dateToParse.substring(17, 19);
-                            offsetMinutes = Integer.parseInt(rawOffsetMinutes);
-                            combinedOffset = Integer.valueOf(String.format("%s%s", offsetHours, rawOffsetMinutes));
-                        }
-                    } catch (IndexOutOfBoundsException ignored) {
-                        // It is allowed for all fields except year to be missing
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Invalid UTC offset supplied");
-                        return getString(R.string.document_properties_invalid_date);
-                    }
+        @Override
+        public String getCachedPage(int page, float zoom, float ratio) {
+            final String documentHash = mDocumentHash;
+            if (documentHash == null || !isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return null;
+            }
+            return mPageCache.get(PageCache.getKey(documentHash, page, zoom, ratio));
+        }
 
-                    // Validate UT offset
-                    if (combinedOffset < -1200 || combinedOffset > 1400) {
-                        Log.e(TAG, "UTC offset out of bounds");
-                        return getString(R.string.document_properties_invalid_date);
+        @Override
+        public void onPageIndex(String geometry, String labels) {
+            final DocumentMetadata metadata = mMetadata;
+            final String documentHash = mDocumentHash;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
+            }
+            final PageIndex pageIndex;
+            try {
+                pageIndex = PageIndex.decode(geometry, labels);
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "invalid page index", e);
+                return;
+            }
+            metadata.setPageIndex(pageIndex);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateDocumentState();
+                }
+            });
+            // Otherwise saved once the hash is known
+            if (documentHash != null) {
+                BackgroundExecutor.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pageIndex.save(getPageIndexFile(documentHash));
                     }
+                });
+            }
+        }
 
-
-                    switch (utRel) {
-                        case "+":
-                            hours += offsetHours;
-                            minutes += offsetMinutes;
-                            break;
-                        case "-":
-                            hours -= offsetHours;
-                            minutes -= offsetMinutes;
-                            break;
-                        case "Z":
-                            // "Z" means local time equal to UT
-                            break;
-                        default:
-                            break;
+        @Override
+        public void onZoomChanged(final float zoom) {
+            final int generation = mWebViewEngine.getMessageGeneration();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(generation)) {
+                        return;
                     }
+                    mZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+                    // Rendered even if the zoom didn't change so the page drops its preview
+                    renderPage();
+                    invalidateOptionsMenu();
+                }
+            });
+        }
 
-                    calendar.set(year, month, day, hours, minutes, seconds);
-                    final Locale locale = getResources().getConfiguration().getLocales().get(0);
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy", locale);
-                    final TimeZone timeZone = TimeZone.getTimeZone("UTC");
-                    dateFormat.setTimeZone(timeZone);
-                    final Date date = calendar.getTime();
-                    final String dateString = dateFormat.format(date);
-                    dateFormat = new SimpleDateFormat("HH:mm:ss", locale);
-                    dateFormat.setTimeZone(timeZone);
-                    final String timeString = dateFormat.format(date);
+        @Override
+        public void onThumbnail(int page, int width, String data) {
+            final ThumbnailCache thumbnailCache = mThumbnailCache;
+            if (isCurrent(mWebViewEngine.getMessageGeneration())) {
+                thumbnailCache.put(page, width, data);
+            }
+        }
 
-                    return String.format("%s %s", dateString, timeString);
+        @Override
+        public void onSearchText(JSONArray pages) {
+            final SearchIndex searchIndex = mSearchIndex;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration())) {
+                return;
+            }
+            try {
+                for (int i = 0; i < pages.length(); i++) {
+                    final JSONObject page = pages.getJSONObject(i);
+                    searchIndex.addPage(page.getInt("page"), page.getString("text"));
                 }
+            } catch (JSONException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
 
+        @Override
+        public void onSearchIndexFinished() {
+            final SearchIndex searchIndex = mSearchIndex;
+            final String documentHash = mDocumentHash;
+            if (!isCurrent(mWebViewEngine.getMessageGeneration()) || searchIndex.isComplete()) {
+                return;
+            }
+            searchIndex.setComplete();
+            runOnUiThread(new Runnable() {
                 @Override
-                protected Void doInBackground(Void... voids) {
-                    try {
-                        final Cursor cursor = getContentResolver().query(mUri, null, null, null, null);
-                        if (cursor == null || cursor.getCount() == 0) {
-                            return null;
-                        }
-
-                        final int fileNameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                        final int fileSizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                public void run() {
+                    updateDocumentState();
+                }
+            });
+            if (documentHash != null) {
+                searchIndex.save(getSearchIndexFile(documentHash));
+            }
+        }
 
-                        cursor.moveToFirst();
+        @Override
+        public void onTiming(String stage, double millis) {
+            mMetrics.record(stage, millis);
+        }
 
-                        final List<String> pdfMetadata = new ArrayList<>();
+        @Override
+        public void onCancellation() {
+            mMetrics.addCancellation();
+        }
+    };
 
-                        pdfMetadata.add(cursor.getString(fileNameIndex));
-                        pdfMetadata.add(parseFileSize(Long.valueOf(cursor.getString(fileSizeIndex))));
+    private final RenderEngine.Callback mEngineCallback = new RenderEngine.Callback() {
+        @Override
+        public void onDocumentLoaded(int numPages) {
+            mNumPages = numPages;
+            mDocumentState = STATE_LOADED;
+            invalidateOptionsMenu();
+            // PdfRenderer doesn't expose the info dictionary or outline
+            mMetadata.setNumPages(numPages);
+            renderPage();
+        }
 
-                        cursor.close();
+        @Override
+        public void onDocumentFailed() {
+            Log.e(TAG, "native renderer failed, falling back to pdf.js");
+            mEngineOverride = WebViewRenderEngine.NAME;
+            loadPdf();
+        }
 
-                        final JSONObject json = new JSONObject(properties);
-                        pdfMetadata.add(json.optString("Title", "-"));
-                        pdfMetadata.add(json.optString("Author", "-"));
-                        pdfMetadata.add(json.optString("Subject", "-"));
-                        pdfMetadata.add(json.optString("Keywords", "-"));
-                        pdfMetadata.add(parseDate(json.optString("CreationDate", "-")));
-                        pdfMetadata.add(parseDate(json.optString("ModDate", "-")));
-                        pdfMetadata.add(json.optString("Producer", "-"));
-                        pdfMetadata.add(json.optString("Creator", "-"));
-                        pdfMetadata.add(json.optString("PDFFormatVersion", "-"));
-                        pdfMetadata.add(String.valueOf(mNumPages));
+        @Override
+        public void onPageRendered(double millis) {
+            hideResumeImage();
+            mMetrics.record("render." + mEngine.getName(), millis);
+            recordFirstPage(mEngine.getName());
+        }
 
-                        final String[] documentPropertiesNames = getApplicationContext()
-                                .getResources().getStringArray(R.array.document_properties);
-                        final StringBuilder documentProperties = new StringBuilder();
+        @Override
+        public void onPageFailed() {
+            Log.e(TAG, "native renderer failed to render a page, falling back to pdf.js");
+            mEngineOverride = WebViewRenderEngine.NAME;
+            loadPdf();
+        }
+    };
 
-                        for (int i = 0; i < documentPropertiesNames.length; i++) {
-                            documentProperties.append(formatProperty(documentPropertiesNames[i], pdfMetadata.get(i)));
-                        }
+    private void recordFirstPage(String engineName) {
+        if (!mFirstPageRendered) {
+            mFirstPageRendered = true;
+            mMetrics.record(Metrics.STAGE_TIME_TO_FIRST_PAGE + "." + engineName,
+                    SystemClock.elapsedRealtime() - mLoadStartTime);
+        }
+    }
 
-                        mDocumentProperties = documentProperties.toString();
-                    } catch (JSONException e) {
-                        Log.e(TAG, e.getMessage());
+    private void loadFileInfo() {
+        mFileName = null;
+        mFileSize = -1;
+        final Uri uri = mUri;
+        BackgroundExecutor.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = getContentResolver().query(uri, null, null, null, null);
+                if (cursor == null) {
+                    return;
+                }
+                if (cursor.moveToFirst() && uri.equals(mUri)) {
+                    final int fileSizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    mFileName = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                    if (!cursor.isNull(fileSizeIndex)) {
+                        mFileSize = cursor.getLong(fileSizeIndex);
                     }
-                    return null;
                 }
-            }.execute();
-        }
+                cursor.close();
+            }
+        });
     }
 
     @Override
@@ -293,6 +449,7 @@ public class PdfViewer extends Activity {
 
         setContentView(R.layout.webview);
 
+        mContainer = (FrameLayout) findViewById(R.id.container);
         mWebView = (WebView) findViewById(R.id.webview);
         WebSettings settings = mWebView.getSettings();
         settings.setAllowContentAccess(false);
@@ -304,14 +461,39 @@ public class PdfViewer extends Activity {
 
         CookieManager.getInstance().setAcceptCookie(false);
 
-        mChannel = new Channel();
-        mWebView.addJavascriptInterface(mChannel, "channel");
+        mPageCache = new PageCache(new File(getCacheDir(), "pages"), PAGE_CACHE_SIZE);
+        mThumbnailDiskCache = new PageCache(new File(getCacheDir(), "thumbnails"), THUMBNAIL_CACHE_SIZE);
+        // Kept out of the cache directory, the system may clear it between opens
+        mPositionStore = new ReadingPositionStore(new File(getFilesDir(), "positions"), mPageCache);
+        mDocumentStore = new DocumentStore(new File(getFilesDir(), "documents"), DOCUMENT_STORE_SIZE);
+        mPixelRatio = getResources().getDisplayMetrics().density;
+        if (sCMapCache == null) {
+            // Bundled CMaps can only change along with the APK
+            sCMapCache = new CMapCache(getApplicationContext().getAssets(),
+                    new File(getCacheDir(), "cmaps"),
+                    String.valueOf(new File(getApplicationInfo().sourceDir).lastModified()));
+        }
 
         mWebView.setWebViewClient(new WebViewClient() {
             @Override
             public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
-                if ("GET".equals(request.getMethod()) && "https://localhost/placeholder.pdf".equals(request.getUrl().toString())) {
-                    return new WebResourceResponse("application/pdf", null, mInputStream);
+                if ("GET".equals(request.getMethod()) && sCMapCache.isCMapRequest(request.getUrl())) {
+                    return sCMapCache.serve(request.getUrl());
+                }
+                if ("GET".equals(request.getMethod()) && mWebViewEngine.isDocumentRequest(request.getUrl())) {
+                    final WebResourceResponse response;
+                    final DocumentRangeServer rangeServer = mRangeServer;
+                    final DocumentIdentification identification = mStreamIdentification;
+                    if (rangeServer != null) {
+                        response = rangeServer.serve(request);
+                    } else if (identification != null) {
+                        mStreamIdentification = null;
+                        response = serveStream(request, identification);
+                    } else {
+                        return null;
+                    }
+                    response.setData(mMetrics.countBytes(response.getData()));
+                    return response;
                 }
                 return null;
             }
@@ -323,11 +505,26 @@ public class PdfViewer extends Activity {
 
             @Override
             public void onPageFinished(WebView view, String url) {
-                mDocumentState = STATE_LOADED;
-                invalidateOptionsMenu();
+                mWebViewEngine.onRuntimeLoaded();
             }
         });
 
+        mWebViewEngine = new WebViewRenderEngine(mWebView, mEngineCallback, mBridgeListener);
+        mWebViewEngine.setSurfaceBudget(MemoryGovernor.getSurfaceBudget(
+                (ActivityManager) getSystemService(ACTIVITY_SERVICE)));
+        mEngine = mWebViewEngine;
+        mSession = new DocumentSession(MemoryGovernor.getSessionBudget(
+                (ActivityManager) getSystemService(ACTIVITY_SERVICE)), SESSION_MAX_DOCUMENTS,
+                new DocumentSession.EvictionListener() {
+                    @Override
+                    public void onEvicted(DocumentSession.Entry entry) {
+                        mWebViewEngine.evict(entry.generation);
+                        if (entry.rangeServer != null) {
+                            entry.rangeServer.close();
+                        }
+                    }
+                });
+
         mTextView = new TextView(this);
         mTextView.setBackgroundColor(Color.DKGRAY);
         mTextView.setTextColor(ColorStateList.valueOf(Color.WHITE));
@@ -348,8 +545,16 @@ public class PdfViewer extends Activity {
         if (savedInstanceState != null) {
             mUri = savedInstanceState.getParcelable(STATE_URI);
             mPage = savedInstanceState.getInt(STATE_PAGE);
-            mZoomLevel = savedInstanceState.getInt(STATE_ZOOM_LEVEL);
+            mZoom = savedInstanceState.getFloat(STATE_ZOOM, mZoom);
+            mContinuous = savedInstanceState.getBoolean(STATE_CONTINUOUS);
+            mEngineOverride = savedInstanceState.getString(STATE_ENGINE);
+        } else {
+            mRestorePending = true;
         }
+        mWebViewEngine.setContinuous(mContinuous);
+
+        // Load pdf.js right away, even before a document has been picked
+        mWebViewEngine.prewarm();
 
         if (mUri != null) {
             loadPdf();
@@ -357,19 +562,562 @@ public class PdfViewer extends Activity {
     }
 
     private void loadPdf() {
+        mLoadStartTime = SystemClock.elapsedRealtime();
+        mLoadGeneration++;
+        mFirstPageRendered = false;
+        mDocumentLoaded = false;
+        hideResumeImage();
+        mScrollX = 0;
+        mScrollY = 0;
+        // Nothing may be saved against the previous document's hash
+        mWebViewEngine.detach();
+        mDocumentHash = null;
+        mMetadata = new DocumentMetadata();
+        mThumbnailCache = new ThumbnailCache(mThumbnailDiskCache,
+                Math.round(THUMBNAIL_WIDTH_DP * getResources().getDisplayMetrics().density),
+                THUMBNAIL_MEMORY_CACHE_SIZE);
+        loadFileInfo();
+        closeDocument();
+        mRangeServer = DocumentRangeServer.open(getContentResolver(), mUri);
+        mSeekableUri = mRangeServer != null ? mUri : null;
+
+        setEngine(chooseEngine(mRangeServer != null));
+        if (mEngine != mWebViewEngine) {
+            closeDocument();
+            mEngine.open(mUri);
+            return;
+        }
+
+        if (mRangeServer == null) {
+            try {
+                mInputStream = getContentResolver().openInputStream(mUri);
+            } catch (IOException e) {
+                return;
+            }
+        }
+        mSearchIndex = new SearchIndex();
+        updateDocumentState();
+        mWebViewEngine.setSearchQuery("");
+        mWebViewEngine.setPosition(mPage, mZoom);
+        mStreamIdentification = mRangeServer == null ? new DocumentIdentification() : null;
+        computeDocumentHash();
+        mEngine.open(mUri);
+    }
+
+    /**
+     * Uses the engine picked from the menu if any. Otherwise low-RAM devices get the native
+     * renderer for documents it can open, as it avoids loading pdf.js altogether.
+     */
+    private RenderEngine chooseEngine(boolean seekable) {
+        final boolean useNative;
+        if (mEngineOverride != null) {
+            useNative = NativeRenderEngine.NAME.equals(mEngineOverride);
+        } else {
+            useNative = seekable && ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).isLowRamDevice();
+        }
+        if (!useNative) {
+            return mWebViewEngine;
+        }
+        if (mNativeEngine == null) {
+            mNativeEngine = new NativeRenderEngine(this, mEngineCallback);
+        }
+        return mNativeEngine;
+    }
+
+    private void setEngine(RenderEngine engine) {
+        if (engine == mEngine) {
+            return;
+        }
+        mEngine.close();
+        mContainer.removeView(mEngine.getView());
+        mEngine = engine;
+        mContainer.addView(mEngine.getView(), new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+    }
+
+    /**
+     * Identifies the document being loaded. Seekable documents are recognized from a quick hash
+     * if they have been opened before, then verified against the full hash computed in the
+     * background. Streamed documents are hashed by serveStream as pdf.js reads them.
+     */
+    private void computeDocumentHash() {
+        mDocumentHash = null;
+        if (mRangeServer == null) {
+            return;
+        }
+        final Uri uri = mUri;
+        final DocumentIdentification identification = new DocumentIdentification();
+        BackgroundExecutor.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                final String quickHash = DocumentStore.computeQuickHash(getContentResolver(), uri);
+                final String knownHash = quickHash == null ? null : mDocumentStore.getFullHash(quickHash);
+                if (knownHash != null) {
+                    identification.identify(knownHash);
+                }
+                final String documentHash = DocumentHash.compute(getContentResolver(), uri);
+                if (documentHash == null) {
+                    return;
+                }
+                if (quickHash != null) {
+                    mDocumentStore.putFullHash(quickHash, documentHash);
+                }
+                if (knownHash == null) {
+                    identification.identify(documentHash);
+                } else if (!knownHash.equals(documentHash)) {
+                    identification.reload();
+                }
+            }
+        });
+    }
+
+    /**
+     * Serves a document that can only be read sequentially. Runs on the WebView's network
+     * thread: a local copy is used if the document has been streamed before, otherwise it is
+     * hashed and copied while pdf.js reads it.
+     */
+    private WebResourceResponse serveStream(WebResourceRequest request,
+            DocumentIdentification identification) {
+        final InputStream input = new BufferedInputStream(mInputStream, DocumentStore.SAMPLE_SIZE);
+        final byte[] head = new byte[DocumentStore.SAMPLE_SIZE];
+        int length = 0;
         try {
-            if (mInputStream != null) {
-                mInputStream.close();
+            input.mark(head.length);
+            int read;
+            while (length < head.length && (read = input.read(head, length, head.length - length)) != -1) {
+                length += read;
             }
-            mInputStream = getContentResolver().openInputStream(mUri);
+            input.reset();
         } catch (IOException e) {
+            Log.e(TAG, "failed to read document", e);
+            return new WebResourceResponse("application/pdf", null, input);
+        }
+
+        final String quickHash = DocumentStore.computeStreamQuickHash(getContentResolver(),
+                identification.uri, head, length);
+        final String knownHash = quickHash == null ? null : mDocumentStore.getFullHash(quickHash);
+        final File localCopy = knownHash == null ? null : mDocumentStore.getLocalCopy(knownHash);
+        final DocumentRangeServer localServer = localCopy == null ||
+                identification.generation != mLoadGeneration ? null : DocumentRangeServer.open(localCopy);
+        if (localServer != null) {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+            mRangeServer = localServer;
+            mSeekableUri = Uri.fromFile(localCopy);
+            identification.identify(knownHash);
+            return localServer.serve(request);
+        }
+        return new WebResourceResponse("application/pdf", null,
+                mDocumentStore.hashWhileReading(input, quickHash, identification));
+    }
+
+    /**
+     * Picks up whatever was kept for the same bytes on a previous open once the document hash
+     * is known. Holds on to the state of the load it was created for, so a late result for a
+     * document that has since been replaced is dropped.
+     */
+    private class DocumentIdentification implements DocumentStore.Listener {
+        final int generation = mLoadGeneration;
+        final Uri uri = mUri;
+        final SearchIndex searchIndex = mSearchIndex;
+        final DocumentMetadata metadata = mMetadata;
+        final ThumbnailCache thumbnailCache = mThumbnailCache;
+        final boolean restore = mRestorePending;
+        final boolean showImage = !mContinuous;
+
+        @Override
+        public void onDocumentHashed(final String documentHash) {
+            BackgroundExecutor.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    identify(documentHash);
+                }
+            });
+        }
+
+        // Does disk I/O
+        void identify(final String documentHash) {
+            final ReadingPositionStore.Position position = restore ? mPositionStore.get(documentHash) : null;
+            final Bitmap image = position != null && showImage ? mPositionStore.getImage(documentHash) : null;
+            // Either pick up the index persisted for a previous open, or persist the one that
+            // finished building before the hash was known
+            final File searchIndexFile = getSearchIndexFile(documentHash);
+            if (!searchIndex.load(searchIndexFile) && searchIndex.isComplete()) {
+                searchIndex.save(searchIndexFile);
+            }
+            final File pageIndexFile = getPageIndexFile(documentHash);
+            final PageIndex pageIndex = PageIndex.load(pageIndexFile);
+            if (pageIndex != null) {
+                metadata.setPageIndex(pageIndex);
+            } else if (metadata.getPageIndex() != null) {
+                metadata.getPageIndex().save(pageIndexFile);
+            }
+            // A streamed document can be printed once it has been copied in full
+            final File localCopy = mSeekableUri == null ? mDocumentStore.getLocalCopy(documentHash) : null;
+
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mLoadGeneration) {
+                        return;
+                    }
+                    mDocumentHash = documentHash;
+                    thumbnailCache.setDocumentHash(documentHash);
+                    if (localCopy != null && mSeekableUri == null) {
+                        mSeekableUri = Uri.fromFile(localCopy);
+                        invalidateOptionsMenu();
+                    }
+                    // Metadata already extracted for the same bytes makes the pass pdf.js is
+                    // about to run redundant
+                    final DocumentMetadata cached = sMetadataCache.get(documentHash);
+                    if (cached != null && cached.isComplete()) {
+                        mMetadata = cached;
+                    } else {
+                        sMetadataCache.put(documentHash, mMetadata);
+                    }
+                    // The search and page index may have been loaded from disk
+                    updateDocumentState();
+                    if (mRestorePending) {
+                        mRestorePending = false;
+                        // Moving away from the first page before the lookup finished wins
+                        if (position != null && mPage == 1) {
+                            restorePosition(position, image);
+                        } else {
+                            savePosition();
+                        }
+                    }
+                }
+            });
+        }
+
+        // The document changed without its quick hash changing, anything shown from state
+        // kept for the old contents has to go
+        void reload() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mLoadGeneration) {
+                        Log.d(TAG, "document contents changed, reloading");
+                        loadPdf();
+                    }
+                }
+            });
+        }
+    }
+
+    private void restorePosition(ReadingPositionStore.Position position, Bitmap image) {
+        if (mNumPages == 0) {
+            mNumPages = position.numPages;
+        }
+        mPage = Math.max(1, Math.min(position.page, position.numPages));
+        mZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, position.zoom));
+        mScrollX = position.scrollX;
+        mScrollY = position.scrollY;
+        if (image != null && !mFirstPageRendered && !mContinuous) {
+            showResumeImage(image, position);
+        }
+        mWebViewEngine.restorePosition(mPage, mZoom, mScrollX, mScrollY);
+        invalidateOptionsMenu();
+        showPageNumber();
+    }
+
+    // Lays the saved render out the way viewer.js will: top left aligned, scrolled by the
+    // saved offset and scaled from the pixel ratio it was rendered with
+    private void showResumeImage(Bitmap image, ReadingPositionStore.Position position) {
+        hideResumeImage();
+        final float density = getResources().getDisplayMetrics().density;
+        final Matrix matrix = new Matrix();
+        matrix.setScale(density / position.ratio, density / position.ratio);
+        matrix.postTranslate(-position.scrollX * density, -position.scrollY * density);
+        mResumeImage = new ImageView(this);
+        mResumeImage.setBackgroundColor(Color.WHITE);
+        mResumeImage.setScaleType(ImageView.ScaleType.MATRIX);
+        mResumeImage.setImageMatrix(matrix);
+        mResumeImage.setImageBitmap(image);
+        mContainer.addView(mResumeImage, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+    }
+
+    private void hideResumeImage() {
+        if (mResumeImage != null) {
+            mContainer.removeView(mResumeImage);
+            mResumeImage = null;
+        }
+    }
+
+    private void savePosition() {
+        final String documentHash = mDocumentHash;
+        if (documentHash == null || mRestorePending || mNumPages == 0) {
+            return;
+        }
+        mPositionStore.put(documentHash, new ReadingPositionStore.Position(mPage, mZoom,
+                mScrollX, mScrollY, mNumPages, mPixelRatio));
+    }
+
+    private File getSearchIndexFile(String documentHash) {
+        return new File(new File(getCacheDir(), "search"), documentHash);
+    }
+
+    private File getPageIndexFile(String documentHash) {
+        return new File(new File(getCacheDir(), "page-index"), documentHash);
+    }
+
+    public SearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    public DocumentMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Resolves the pages of outline entries that haven't been looked up yet, then runs
+     * onResolved on the main thread.
+     */
+    public void resolveOutlinePages(List<DocumentMetadata.OutlineItem> items, final Runnable onResolved) {
+        final List<DocumentMetadata.OutlineItem> unresolved = new ArrayList<>();
+        for (final DocumentMetadata.OutlineItem item : items) {
+            if (item.getPage() == 0) {
+                unresolved.add(item);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            onResolved.run();
+            return;
+        }
+        final String[] destinations = new String[unresolved.size()];
+        for (int i = 0; i < destinations.length; i++) {
+            destinations[i] = unresolved.get(i).destination;
+        }
+        mWebViewEngine.resolveDestinations(destinations, new WebViewRenderEngine.DestinationsCallback() {
+            @Override
+            public void onDestinationsResolved(int[] pages) {
+                for (int i = 0; i < pages.length; i++) {
+                    unresolved.get(i).setPage(pages[i]);
+                }
+                onResolved.run();
+            }
+        });
+    }
+
+    public ThumbnailCache getThumbnailCache() {
+        return mThumbnailCache;
+    }
+
+    /**
+     * Makes thumbnails of the given pages available, from disk when cached and otherwise
+     * rendered by pdf.js in the background in the order given.
+     */
+    public void requestThumbnails(final int[] pages) {
+        final ThumbnailCache thumbnailCache = mThumbnailCache;
+        BackgroundExecutor.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] missing = new int[pages.length];
+                int count = 0;
+                for (final int page : pages) {
+                    if (!thumbnailCache.load(page)) {
+                        missing[count++] = page;
+                    }
+                }
+                final int[] render = Arrays.copyOf(missing, count);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (thumbnailCache == mThumbnailCache) {
+                            mWebViewEngine.renderThumbnails(render, thumbnailCache.getWidth());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public void showSearchResult(String query, int page) {
+        mWebViewEngine.setSearchQuery(query);
+        positiveButtonRenderPage(page);
+    }
+
+    private void closeDocument() {
+        if (mRangeServer != null) {
+            mRangeServer.close();
+            mRangeServer = null;
+        }
+        if (mInputStream != null) {
+            try {
+                mInputStream.close();
+            } catch (IOException ignored) {
+            }
+            mInputStream = null;
+        }
+    }
+
+    /**
+     * Keeps the document being viewed open in pdf.js instead of closing it, along with
+     * everything needed to switch back to it. Does nothing unless pdf.js has it loaded.
+     */
+    private void parkDocument() {
+        if (mEngine != mWebViewEngine || !mDocumentLoaded) {
+            return;
+        }
+        savePosition();
+        final DocumentSession.Entry entry = new DocumentSession.Entry(
+                mWebViewEngine.getGeneration(), mUri, mRangeServer, mSeekableUri, mDocumentHash,
+                mMetadata, mSearchIndex, mThumbnailCache, mFileName, mFileSize, mNumPages, mPage,
+                mZoom, mScrollX, mScrollY);
+        // Decoded thumbnails come back from the disk cache quickly enough
+        mThumbnailCache.trimMemory(MemoryGovernor.TRIM_CACHES);
+        mWebViewEngine.park();
+        mDocumentLoaded = false;
+        // Left open, pdf.js fetches ranges from it again once the document is resumed
+        mRangeServer = null;
+        mStreamIdentification = null;
+        mSession.park(entry);
+    }
+
+    /**
+     * Switches to a document parked in the session, parking the one being viewed.
+     */
+    public void switchDocument(int generation) {
+        final DocumentSession.Entry entry = mSession.resume(generation);
+        if (entry == null) {
+            return;
+        }
+        parkDocument();
+        closeDocument();
+        // One that was still loading couldn't be parked, nothing more is taken from it either
+        mWebViewEngine.detach();
+        mLoadGeneration++;
+        // Nothing is loaded, the first page would only measure the switch
+        mFirstPageRendered = true;
+        mRestorePending = false;
+        hideResumeImage();
+        mUri = entry.uri;
+        mRangeServer = entry.rangeServer;
+        mSeekableUri = entry.seekableUri;
+        mDocumentHash = entry.documentHash;
+        mMetadata = entry.metadata;
+        mSearchIndex = entry.searchIndex;
+        updateDocumentState();
+        mThumbnailCache = entry.thumbnailCache;
+        mFileName = entry.fileName;
+        mFileSize = entry.fileSize;
+        mNumPages = entry.numPages;
+        mPage = entry.page;
+        mZoom = entry.zoom;
+        mScrollX = entry.scrollX;
+        mScrollY = entry.scrollY;
+        mDocumentLoaded = true;
+        mDocumentState = STATE_LOADED;
+
+        mWebViewEngine.setSearchQuery("");
+        mWebViewEngine.setPosition(mPage, mZoom);
+        mWebViewEngine.resume(generation);
+        mWebViewEngine.restorePosition(mPage, mZoom, mScrollX, mScrollY);
+        mSession.trim(entry.getSize());
+        // Parked before its hash was known
+        if (mDocumentHash == null) {
+            computeDocumentHash();
+        }
+        invalidateOptionsMenu();
+        showPageNumber();
+    }
+
+    public DocumentSession getSession() {
+        return mSession;
+    }
+
+    // As far as it is known yet, for the session budget
+    private long getDocumentSize() {
+        final DocumentRangeServer rangeServer = mRangeServer;
+        if (rangeServer != null) {
+            return rangeServer.getSize();
+        }
+        return Math.max(mFileSize, 0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        trimMemory(MemoryGovernor.fromTrimLevel(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimMemory(MemoryGovernor.TRIM_ALL);
+    }
+
+    private void trimMemory(int level) {
+        if (level == MemoryGovernor.TRIM_NONE) {
             return;
         }
-        mWebView.loadUrl("file:///android_asset/viewer.html");
+        Log.d(TAG, "trimming memory, level " + level);
+        // The pdf.js runtime is kept warm even while another engine shows the document
+        mWebViewEngine.trimMemory(level);
+        if (mNativeEngine != null) {
+            mNativeEngine.trimMemory(level);
+        }
+        if (mThumbnailCache != null) {
+            mThumbnailCache.trimMemory(level);
+        }
+        if (level >= MemoryGovernor.TRIM_CACHES) {
+            mSession.evictAll();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mPositionStore.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSession.evictAll();
+        closeDocument();
+        if (mNativeEngine != null) {
+            mNativeEngine.destroy();
+        }
+        mWebViewEngine.destroy();
+        Log.d(TAG, String.format("page cache hit rate: %.2f, size: %d bytes",
+                mPageCache.getHitRate(), mPageCache.getSize()));
+        Log.d(TAG, String.format("CMap cache hits: %d, misses: %d",
+                sCMapCache.getHitCount(), sCMapCache.getMissCount()));
+    }
+
+    private static float nextZoomStep(float zoom) {
+        for (final float step : ZOOM_STEPS) {
+            if (step > zoom) {
+                return step;
+            }
+        }
+        return MAX_ZOOM;
+    }
+
+    private static float previousZoomStep(float zoom) {
+        for (int i = ZOOM_STEPS.length - 1; i >= 0; i--) {
+            if (ZOOM_STEPS[i] < zoom) {
+                return ZOOM_STEPS[i];
+            }
+        }
+        return MIN_ZOOM;
     }
 
     private void renderPage() {
-        mWebView.evaluateJavascript("onRenderPage()", null);
+        mEngine.renderPage(mPage, mZoom);
+        savePosition();
+    }
+
+    // Lets viewer.js skip building what the host already has for the current document
+    private void updateDocumentState() {
+        final DocumentMetadata metadata = mMetadata;
+        final PageIndex pageIndex = metadata.getPageIndex();
+        mWebViewEngine.setDocumentState(mSearchIndex.isComplete(), metadata.isComplete(),
+                pageIndex != null ? pageIndex.encodeGeometry() : null);
     }
 
     private void openDocument() {
@@ -379,6 +1127,29 @@ public class PdfViewer extends Activity {
         startActivityForResult(intent, ACTION_OPEN_DOCUMENT_REQUEST_CODE);
     }
 
+    private String getDocumentName() {
+        final String fileName = mFileName;
+        if (fileName == null) {
+            return getString(R.string.app_name);
+        }
+        return fileName.toLowerCase(Locale.ROOT).endsWith(".pdf") ?
+                fileName.substring(0, fileName.length() - 4) : fileName;
+    }
+
+    private void printDocument() {
+        final String name = getDocumentName();
+        final PrintManager printManager = (PrintManager) getSystemService(PRINT_SERVICE);
+        printManager.print(name, new PrintAdapter(this, mSeekableUri, name, mNumPages), null);
+    }
+
+    private void exportPages() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/zip");
+        intent.putExtra(Intent.EXTRA_TITLE, getDocumentName() + ".zip");
+        startActivityForResult(intent, ACTION_EXPORT_PAGES_REQUEST_CODE);
+    }
+
     private static void enableDisableMenuItem(MenuItem item, boolean enable) {
         if (enable) {
             if (!item.isEnabled()) {
@@ -404,19 +1175,35 @@ public class PdfViewer extends Activity {
         super.onSaveInstanceState(savedInstanceState);
         savedInstanceState.putParcelable(STATE_URI, mUri);
         savedInstanceState.putInt(STATE_PAGE, mPage);
-        savedInstanceState.putInt(STATE_ZOOM_LEVEL, mZoomLevel);
+        savedInstanceState.putFloat(STATE_ZOOM, mZoom);
+        savedInstanceState.putBoolean(STATE_CONTINUOUS, mContinuous);
+        savedInstanceState.putString(STATE_ENGINE, mEngineOverride);
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent resultData) {
         if (requestCode == ACTION_OPEN_DOCUMENT_REQUEST_CODE && resultCode == Activity.RESULT_OK) {
             if (resultData != null) {
+                // Parked documents are only kept by pdf.js
+                final DocumentSession.Entry parked = mEngine == mWebViewEngine ?
+                        mSession.find(resultData.getData()) : null;
+                if (parked != null) {
+                    switchDocument(parked.generation);
+                    return;
+                }
+                parkDocument();
                 mUri = resultData.getData();
                 mPage = 1;
-                mDocumentProperties = null;
+                mRestorePending = true;
                 loadPdf();
+                mSession.trim(getDocumentSize());
                 invalidateOptionsMenu();
             }
+        } else if (requestCode == ACTION_EXPORT_PAGES_REQUEST_CODE && resultCode == Activity.RESULT_OK) {
+            if (resultData != null && mSeekableUri != null) {
+                ExportPagesFragment.newInstance(mSeekableUri, resultData.getData(), mNumPages)
+                        .show(getFragmentManager(), null);
+            }
         }
     }
 
@@ -443,7 +1230,8 @@ public class PdfViewer extends Activity {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         final int ids[] = { R.id.action_zoom_in, R.id.action_zoom_out, R.id.action_jump_to_page,
-                R.id.action_next, R.id.action_previous, R.id.action_view_document_properties };
+                R.id.action_next, R.id.action_previous, R.id.action_native_renderer,
+                R.id.action_view_document_properties };
         if (mDocumentState == 0) {
             for (final int id : ids) {
                 final MenuItem item = menu.findItem(id);
@@ -461,18 +1249,25 @@ public class PdfViewer extends Activity {
             mDocumentState = STATE_END;
         }
 
-        switch (mZoomLevel) {
-            case MAX_ZOOM_LEVEL:
-                enableDisableMenuItem(menu.findItem(R.id.action_zoom_in), false);
-                return true;
-            case MIN_ZOOM_LEVEL:
-                enableDisableMenuItem(menu.findItem(R.id.action_zoom_out), false);
-                return true;
-            default:
-                enableDisableMenuItem(menu.findItem(R.id.action_zoom_in), true);
-                enableDisableMenuItem(menu.findItem(R.id.action_zoom_out), true);
-                return true;
-        }
+        // Search and continuous scrolling are only implemented in viewer.js
+        final boolean pdfJs = mEngine == mWebViewEngine;
+        menu.findItem(R.id.action_search).setVisible(mDocumentState != 0 && pdfJs);
+        menu.findItem(R.id.action_outline).setVisible(mDocumentState != 0 && pdfJs);
+        menu.findItem(R.id.action_thumbnails).setVisible(mDocumentState != 0 && pdfJs);
+        menu.findItem(R.id.action_documents).setVisible(pdfJs && !mSession.isEmpty());
+        menu.findItem(R.id.action_continuous_scroll).setVisible(mDocumentState != 0 && pdfJs)
+                .setChecked(mContinuous);
+        menu.findItem(R.id.action_native_renderer).setChecked(!pdfJs);
+        // Pages are rasterized with PdfRenderer, which needs a seekable document
+        final boolean rasterizable = mDocumentState != 0 && mSeekableUri != null && mNumPages > 0;
+        menu.findItem(R.id.action_print).setVisible(rasterizable);
+        menu.findItem(R.id.action_export_pages).setVisible(rasterizable);
+        menu.findItem(R.id.action_view_metrics).setVisible(mDocumentState != 0 &&
+                (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
+        enableDisableMenuItem(menu.findItem(R.id.action_zoom_in), mZoom < MAX_ZOOM);
+        enableDisableMenuItem(menu.findItem(R.id.action_zoom_out), mZoom > MIN_ZOOM);
+        return true;
     }
 
     @Override
@@ -499,26 +1294,82 @@ public class PdfViewer extends Activity {
                 return super.onOptionsItemSelected(item);
 
             case R.id.action_zoom_out:
-                if (mZoomLevel > 0) {
-                    mZoomLevel--;
+                if (mZoom > MIN_ZOOM) {
+                    mZoom = previousZoomStep(mZoom);
                     renderPage();
                     invalidateOptionsMenu();
                 }
                 return true;
 
             case R.id.action_zoom_in:
-                if (mZoomLevel < MAX_ZOOM_LEVEL) {
-                    mZoomLevel++;
+                if (mZoom < MAX_ZOOM) {
+                    mZoom = nextZoomStep(mZoom);
                     renderPage();
                     invalidateOptionsMenu();
                 }
                 return true;
 
+            case R.id.action_search:
+                if (!mSearchIndex.isComplete()) {
+                    mWebViewEngine.indexSearch();
+                }
+                new SearchFragment().show(getFragmentManager(), null);
+                return true;
+
+            case R.id.action_outline:
+                new OutlineFragment().show(getFragmentManager(), null);
+                return true;
+
+            case R.id.action_thumbnails:
+                new ThumbnailsFragment().show(getFragmentManager(), null);
+                return true;
+
+            case R.id.action_documents:
+                new DocumentsFragment().show(getFragmentManager(), null);
+                return true;
+
+            case R.id.action_continuous_scroll:
+                mContinuous = !mContinuous;
+                item.setChecked(mContinuous);
+                mWebViewEngine.setContinuous(mContinuous);
+                renderPage();
+                return true;
+
+            case R.id.action_native_renderer:
+                mEngineOverride = item.isChecked() ? WebViewRenderEngine.NAME : NativeRenderEngine.NAME;
+                loadPdf();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.action_print:
+                printDocument();
+                return true;
+
+            case R.id.action_export_pages:
+                exportPages();
+                return true;
+
             case R.id.action_view_document_properties:
-                if (mDocumentProperties == null) {
-                    mDocumentProperties = getString(R.string.document_properties_retrieval_failed);
+                final String properties;
+                if (mFileName == null) {
+                    properties = getString(R.string.document_properties_retrieval_failed);
+                } else {
+                    properties = mMetadata.formatProperties(
+                            getResources().getStringArray(R.array.document_properties),
+                            mFileName, mFileSize, getResources().getConfiguration().getLocales().get(0),
+                            getString(R.string.document_properties_invalid_date));
+                }
+                DocumentPropertiesFragment.getInstance(properties).show(getFragmentManager(), null);
+                return true;
+
+            case R.id.action_view_metrics:
+                String json;
+                try {
+                    json = mMetrics.toJson().toString(2);
+                } catch (JSONException e) {
+                    json = "{}";
                 }
-                DocumentPropertiesFragment.getInstance(mDocumentProperties).show(getFragmentManager(), null);
+                MetricsFragment.newInstance(mMetrics.toSummary(), json).show(getFragmentManager(), null);
                 return true;
 
             case R.id.action_jump_to_page:
@@ -0,0 +1,205 @@
+package co.copperhead.pdfviewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.graphics.pdf.PdfRenderer;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.print.PageRange;
+import android.print.PrintAttributes;
+import android.print.PrintDocumentAdapter;
+import android.print.PrintDocumentInfo;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints a document by rasterizing the requested pages and laying each one out on a page of
+ * the printed document. Only the pages in the requested ranges are rendered, and each is
+ * written out before the next one is taken, so memory use doesn't depend on the page count.
+ */
+public class PrintAdapter extends PrintDocumentAdapter {
+    private static final String TAG = "PrintAdapter";
+
+    // Higher printer resolutions cost a lot of memory per page for little visible gain
+    private static final int MAX_DPI = 200;
+    private static final int DEFAULT_DPI = 150;
+    private static final float POINTS_PER_MIL = 72 / 1000f;
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final String mName;
+    private final int mNumPages;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private PrintAttributes mAttributes;
+
+    /**
+     * @param uri the document, which must be seekable
+     */
+    public PrintAdapter(Context context, Uri uri, String name, int numPages) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mName = name;
+        mNumPages = numPages;
+    }
+
+    @Override
+    public void onLayout(PrintAttributes oldAttributes, PrintAttributes newAttributes,
+            CancellationSignal cancellationSignal, LayoutResultCallback callback, Bundle extras) {
+        if (cancellationSignal.isCanceled()) {
+            callback.onLayoutCancelled();
+            return;
+        }
+        mAttributes = newAttributes;
+        final PrintDocumentInfo info = new PrintDocumentInfo.Builder(mName)
+                .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
+                .setPageCount(mNumPages)
+                .build();
+        callback.onLayoutFinished(info, !newAttributes.equals(oldAttributes));
+    }
+
+    @Override
+    public void onWrite(final PageRange[] ranges, final ParcelFileDescriptor destination,
+            final CancellationSignal cancellationSignal, final WriteResultCallback callback) {
+        final PrintAttributes attributes = mAttributes;
+        final PageRange[] written = clampRanges(ranges, mNumPages);
+        // Runs for as long as rasterizing takes, kept off the shared background executor
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(attributes, written, destination, cancellationSignal, callback);
+            }
+        }, "print").start();
+    }
+
+    private void write(PrintAttributes attributes, PageRange[] ranges,
+            ParcelFileDescriptor destination, CancellationSignal cancellationSignal,
+            final WriteResultCallback callback) {
+        final PageRasterizer rasterizer = new PageRasterizer(mContext.getContentResolver(), mUri,
+                getDpi(attributes), PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
+        // Laid out the way PrintedPdfDocument would, the media size less the minimum margins
+        final PrintAttributes.MediaSize mediaSize = attributes.getMediaSize();
+        final PrintAttributes.Margins margins = attributes.getMinMargins() != null ?
+                attributes.getMinMargins() : PrintAttributes.Margins.NO_MARGINS;
+        final float pageWidth = mediaSize.getWidthMils() * POINTS_PER_MIL;
+        final float pageHeight = mediaSize.getHeightMils() * POINTS_PER_MIL;
+        final RectF contentRect = new RectF(margins.getLeftMils() * POINTS_PER_MIL,
+                margins.getTopMils() * POINTS_PER_MIL,
+                pageWidth - margins.getRightMils() * POINTS_PER_MIL,
+                pageHeight - margins.getBottomMils() * POINTS_PER_MIL);
+        try {
+            // The print spooler owns the descriptor, it mustn't be closed here
+            final OutputStream output = new BufferedOutputStream(
+                    new FileOutputStream(destination.getFileDescriptor()), 65536);
+            final ImagePdfWriter writer = new ImagePdfWriter(output);
+            rasterizer.rasterize(toPages(ranges), new PageRasterizer.Sink() {
+                @Override
+                public void onPage(int page, final Bitmap bitmap) throws IOException {
+                    final RectF area = fitPage(contentRect, bitmap);
+                    writer.addPage(pageWidth, pageHeight, area.left, area.top, area.width(),
+                            area.height(), new ImagePdfWriter.Image() {
+                                @Override
+                                public int getWidth() {
+                                    return bitmap.getWidth();
+                                }
+
+                                @Override
+                                public int getHeight() {
+                                    return bitmap.getHeight();
+                                }
+
+                                @Override
+                                public void getRows(int[] pixels, int y, int count) {
+                                    bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, y,
+                                            bitmap.getWidth(), count);
+                                }
+                            });
+                }
+            }, null, cancellationSignal);
+            writer.finish();
+            postResult(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onWriteFinished(ranges);
+                }
+            });
+        } catch (OperationCanceledException e) {
+            postResult(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onWriteCancelled();
+                }
+            });
+        } catch (final IOException | RuntimeException e) {
+            Log.e(TAG, "failed to print document", e);
+            postResult(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onWriteFailed(e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void postResult(Runnable result) {
+        mHandler.post(result);
+    }
+
+    private static int getDpi(PrintAttributes attributes) {
+        final PrintAttributes.Resolution resolution = attributes.getResolution();
+        if (resolution == null) {
+            return DEFAULT_DPI;
+        }
+        return Math.min(MAX_DPI, Math.min(resolution.getHorizontalDpi(), resolution.getVerticalDpi()));
+    }
+
+    // Scales the page to fit the printable area, centered
+    private static RectF fitPage(RectF contentRect, Bitmap bitmap) {
+        final float scale = Math.min(contentRect.width() / bitmap.getWidth(),
+                contentRect.height() / bitmap.getHeight());
+        final float width = bitmap.getWidth() * scale;
+        final float height = bitmap.getHeight() * scale;
+        final float left = contentRect.left + (contentRect.width() - width) / 2;
+        final float top = contentRect.top + (contentRect.height() - height) / 2;
+        return new RectF(left, top, left + width, top + height);
+    }
+
+    private static PageRange[] clampRanges(PageRange[] ranges, int numPages) {
+        final List<PageRange> clamped = new ArrayList<>();
+        for (final PageRange range : ranges) {
+            final int start = Math.max(0, range.getStart());
+            final int end = Math.min(numPages - 1, range.getEnd());
+            if (start <= end) {
+                clamped.add(new PageRange(start, end));
+            }
+        }
+        return clamped.toArray(new PageRange[clamped.size()]);
+    }
+
+    // 1-based page numbers in the 0-based ranges
+    private static int[] toPages(PageRange[] ranges) {
+        int count = 0;
+        for (final PageRange range : ranges) {
+            count += range.getEnd() - range.getStart() + 1;
+        }
+        final int[] pages = new int[count];
+        int i = 0;
+        for (final PageRange range : ranges) {
+            for (int page = range.getStart(); page <= range.getEnd(); page++) {
+                pages[i++] = page + 1;
+            }
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,225 @@
+package co.copperhead.pdfviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers HTTP Range requests for a file, the part of DocumentRangeServer that doesn't depend
+ * on Android so it can be tested and benchmarked on a plain JVM.
+ */
+class RangeResponder {
+    // Granularity fetched parts of the file are tracked at, the range chunk size viewer.js
+    // opens documents with
+    static final int BLOCK_SIZE = 65536;
+
+    static class Response {
+        final int status;
+        final String reason;
+        final Map<String, String> headers;
+        final InputStream data;
+
+        Response(int status, String reason, Map<String, String> headers, InputStream data) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.data = data;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    // Set for files in app storage, which can't be changed underneath the mapping
+    private final MappedByteBuffer mMapping;
+    // Blocks of the file read out of responses so far, guarded by itself
+    private final BitSet mFetched = new BitSet();
+
+    RangeResponder(FileChannel channel, long size, MappedByteBuffer mapping) {
+        mChannel = channel;
+        mSize = size;
+        mMapping = mapping;
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns roughly how much of the file has been read out of responses, counting each part
+     * once however many times it was asked for. pdf.js opens a document with a full request
+     * it aborts once it sees range support, only what was read before that counts.
+     */
+    long getFetchedSize() {
+        final long blocks;
+        synchronized (mFetched) {
+            blocks = mFetched.cardinality();
+        }
+        return Math.min(mSize, blocks * BLOCK_SIZE);
+    }
+
+    private void markFetched(long start, long end) {
+        synchronized (mFetched) {
+            mFetched.set((int) (start / BLOCK_SIZE), (int) (end / BLOCK_SIZE) + 1);
+        }
+    }
+
+    /**
+     * Responds with the whole file when range is null, otherwise with the part it asks for.
+     */
+    Response respond(String range) {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Ranges", "bytes");
+
+        if (range == null) {
+            headers.put("Content-Length", String.valueOf(mSize));
+            return new Response(200, "OK", headers, openStream(0, mSize));
+        }
+
+        final long[] bounds = parseRange(range, mSize);
+        if (bounds == null) {
+            headers.put("Content-Range", "bytes */" + mSize);
+            return new Response(416, "Range Not Satisfiable", headers,
+                    new ByteArrayInputStream(new byte[0]));
+        }
+        final long start = bounds[0];
+        final long length = bounds[1] - start + 1;
+        headers.put("Content-Length", String.valueOf(length));
+        headers.put("Content-Range", String.format("bytes %d-%d/%d", start, bounds[1], mSize));
+        return new Response(206, "Partial Content", headers, openStream(start, length));
+    }
+
+    private InputStream openStream(long start, long length) {
+        final InputStream data;
+        if (mMapping != null) {
+            final ByteBuffer window = mMapping.duplicate();
+            window.position((int) start);
+            window.limit((int) (start + length));
+            data = new BufferInputStream(window);
+        } else {
+            data = new ChannelInputStream(mChannel, start, length);
+        }
+        return new FetchInputStream(data, start);
+    }
+
+    // Marks the blocks of the file as they're actually read
+    private class FetchInputStream extends FilterInputStream {
+        private long mPosition;
+
+        FetchInputStream(InputStream in, long position) {
+            super(in);
+            mPosition = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                markFetched(mPosition, mPosition);
+                mPosition++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                markFetched(mPosition, mPosition + read - 1);
+                mPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mPosition += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Parses a single "bytes=start-end" range (pdf.js never asks for multiple ranges at once)
+     * and returns the inclusive bounds clamped to the file size, or null if unsatisfiable.
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // Suffix range: the last N bytes
+                final long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+            }
+            end = Math.min(end, size - 1);
+            if (start < 0 || start > end) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a window of the channel with positional reads, so concurrent range responses
+     * don't share a file position.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private long mPosition;
+        private long mRemaining;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            mChannel = channel;
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, mRemaining));
+            final int read = mChannel.read(buffer, mPosition);
+            if (read == -1) {
+                mRemaining = 0;
+                return -1;
+            }
+            mPosition += read;
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package co.copperhead.pdfviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where each document was left off, keyed by document hash: page, zoom, scroll offset and page
+ * count along with a copy of the page render shown at the time so it can be displayed before
+ * the document has been opened again. Updates are collected on the main thread and written
+ * out together on a background thread.
+ */
+public class ReadingPositionStore {
+    private static final String TAG = "ReadingPositionStore";
+
+    private static final int VERSION = 1;
+    private static final String IMAGE_SUFFIX = ".png";
+    // Documents remembered, the least recently read are forgotten first
+    private static final int MAX_ENTRIES = 128;
+    private static final long WRITE_DELAY_MS = 2000;
+
+    public static class Position {
+        public final int page;
+        public final float zoom;
+        // In CSS pixels of the pdf.js page
+        public final int scrollX;
+        public final int scrollY;
+        public final int numPages;
+        // Device pixel ratio the page render was made with
+        public final float ratio;
+
+        public Position(int page, float zoom, int scrollX, int scrollY, int numPages, float ratio) {
+            this.page = page;
+            this.zoom = zoom;
+            this.scrollX = scrollX;
+            this.scrollY = scrollY;
+            this.numPages = numPages;
+            this.ratio = ratio;
+        }
+    }
+
+    private final File mDirectory;
+    private final PageCache mPageCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Only accessed on the main thread
+    private final Map<String, Position> mPending = new LinkedHashMap<>();
+    private boolean mWriteScheduled;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            mWriteScheduled = false;
+            final Map<String, Position> batch = new LinkedHashMap<>(mPending);
+            mPending.clear();
+            BackgroundExecutor.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(batch);
+                }
+            });
+        }
+    };
+
+    public ReadingPositionStore(File directory, PageCache pageCache) {
+        mDirectory = directory;
+        mPageCache = pageCache;
+    }
+
+    /**
+     * Returns the saved position, or null if there is none. Does disk I/O.
+     */
+    public synchronized Position get(String documentHash) {
+        final File file = getFile(documentHash);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != VERSION) {
+                return null;
+            }
+            return new Position(input.readInt(), input.readFloat(), input.readInt(),
+                    input.readInt(), input.readInt(), input.readFloat());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read position", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the page render saved along with the position, or returns null if there is
+     * none. Does disk I/O.
+     */
+    public synchronized Bitmap getImage(String documentHash) {
+        final File file = getImageFile(documentHash);
+        if (!file.isFile()) {
+            return null;
+        }
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    /**
+     * Queues the position to be written along with any other changes made in the meantime.
+     * Must be called on the main thread.
+     */
+    public void put(String documentHash, Position position) {
+        // Keep insertion order matching recency so the write touches files oldest first
+        mPending.remove(documentHash);
+        mPending.put(documentHash, position);
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mHandler.postDelayed(mWrite, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes queued changes right away, for when the activity may not come back.
+     */
+    public void flush() {
+        if (mWriteScheduled) {
+            mHandler.removeCallbacks(mWrite);
+            mWrite.run();
+        }
+    }
+
+    private synchronized void write(Map<String, Position> batch) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "failed to create position directory");
+            return;
+        }
+        for (final Map.Entry<String, Position> entry : batch.entrySet()) {
+            writePosition(entry.getKey(), entry.getValue());
+            writeImage(entry.getKey(), entry.getValue());
+        }
+        trim();
+    }
+
+    private void writePosition(String documentHash, Position position) {
+        final File file = getFile(documentHash);
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(VERSION);
+            output.writeInt(position.page);
+            output.writeFloat(position.zoom);
+            output.writeInt(position.scrollX);
+            output.writeInt(position.scrollY);
+            output.writeInt(position.numPages);
+            output.writeFloat(position.ratio);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write position", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    // Copied out of the page cache, which may evict it long before the document is reopened
+    private void writeImage(String documentHash, Position position) {
+        final File file = getImageFile(documentHash);
+        final byte[] data = mPageCache.peek(PageCache.getKey(documentHash, position.page,
+                position.zoom, position.ratio));
+        if (data == null) {
+            // Better nothing than a render of some other page
+            file.delete();
+            return;
+        }
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write page image", e);
+            file.delete();
+        }
+    }
+
+    private void trim() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (final File file : files) {
+            if (!file.getName().endsWith(IMAGE_SUFFIX)) {
+                count++;
+            }
+        }
+        if (count <= MAX_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (final File file : files) {
+            if (count <= MAX_ENTRIES) {
+                break;
+            }
+            if (!file.getName().endsWith(IMAGE_SUFFIX)) {
+                file.delete();
+                getImageFile(file.getName()).delete();
+                count--;
+            }
+        }
+    }
+
+    private File getFile(String documentHash) {
+        return new File(mDirectory, documentHash);
+    }
+
+    private File getImageFile(String documentHash) {
+        return new File(mDirectory, documentHash + IMAGE_SUFFIX);
+    }
+}
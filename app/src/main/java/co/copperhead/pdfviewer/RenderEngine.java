@@ -0,0 +1,38 @@
+package co.copperhead.pdfviewer;
+
+import android.net.Uri;
+import android.view.View;
+
+/**
+ * A backend that displays the current document at the page and zoom passed to renderPage. The
+ * pdf.js engine pushes them to the page as versioned state messages over its message port.
+ */
+public interface RenderEngine {
+    interface Callback {
+        void onDocumentLoaded(int numPages);
+
+        void onDocumentFailed();
+
+        void onPageRendered(double millis);
+
+        void onPageFailed();
+    }
+
+    String getName();
+
+    View getView();
+
+    void open(Uri uri);
+
+    void renderPage(int page, float zoom);
+
+    /**
+     * Releases memory held for the current document, level is one of the MemoryGovernor
+     * TRIM_ constants.
+     */
+    void trimMemory(int level);
+
+    void close();
+
+    void destroy();
+}
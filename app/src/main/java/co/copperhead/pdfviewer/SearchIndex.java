@@ -0,0 +1,273 @@
+package co.copperhead.pdfviewer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Inverted index from lower case words to the pages containing them. It is filled page by
+ * page while viewer.js extracts text in the background and can be persisted once complete.
+ *
+ * Scripts written without spaces between words, such as Chinese, Japanese and Thai, are
+ * indexed as overlapping character pairs instead, so any part of a sentence can be found
+ * without knowing where its words begin and end.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    // Bumped whenever tokenization changes, indexes saved by an older version are rebuilt
+    private static final int VERSION = 2;
+
+    public interface Listener {
+        void onIndexUpdated();
+    }
+
+    private final Map<String, BitSet> mIndex = new HashMap<>();
+    private final BitSet mIndexedPages = new BitSet();
+    private boolean mComplete;
+    private Listener mListener;
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void addPage(int page, String text) {
+        final Listener listener;
+        synchronized (this) {
+            if (mComplete) {
+                return;
+            }
+            for (final String word : tokenize(text)) {
+                BitSet pages = mIndex.get(word);
+                if (pages == null) {
+                    pages = new BitSet();
+                    mIndex.put(word, pages);
+                }
+                pages.set(page);
+            }
+            mIndexedPages.set(page);
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onIndexUpdated();
+        }
+    }
+
+    public void setComplete() {
+        final Listener listener;
+        synchronized (this) {
+            mComplete = true;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onIndexUpdated();
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    public synchronized int getIndexedPageCount() {
+        return mIndexedPages.cardinality();
+    }
+
+    /**
+     * Returns the pages containing every word of the query in ascending order. The last word
+     * is matched as a prefix so results show up while it is still being typed.
+     */
+    public synchronized List<Integer> search(String query) {
+        final List<Integer> results = new ArrayList<>();
+        final List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return results;
+        }
+
+        BitSet matches = null;
+        for (int i = 0; i < words.size(); i++) {
+            final String word = words.get(i);
+            final BitSet pages;
+            if (i == words.size() - 1) {
+                pages = new BitSet();
+                for (final Map.Entry<String, BitSet> entry : mIndex.entrySet()) {
+                    if (entry.getKey().startsWith(word)) {
+                        pages.or(entry.getValue());
+                    }
+                }
+            } else {
+                pages = mIndex.get(word);
+                if (pages == null) {
+                    return results;
+                }
+            }
+            if (matches == null) {
+                matches = (BitSet) pages.clone();
+            } else {
+                matches.and(pages);
+            }
+        }
+
+        for (int page = matches.nextSetBit(0); page >= 0; page = matches.nextSetBit(page + 1)) {
+            results.add(page);
+        }
+        return results;
+    }
+
+    public synchronized void save(File file) {
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "failed to create index directory");
+            return;
+        }
+        final File temp = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(VERSION);
+            writeBitSet(output, mIndexedPages);
+            output.writeInt(mIndex.size());
+            for (final Map.Entry<String, BitSet> entry : mIndex.entrySet()) {
+                output.writeUTF(entry.getKey());
+                writeBitSet(output, entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save index", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Replaces the contents with the complete index stored in the file, returning false if
+     * there is none.
+     */
+    public boolean load(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        final Listener listener;
+        synchronized (this) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (input.readInt() != VERSION) {
+                    return false;
+                }
+                final BitSet indexedPages = readBitSet(input);
+                final Map<String, BitSet> index = new HashMap<>();
+                final int size = input.readInt();
+                for (int i = 0; i < size; i++) {
+                    final String word = input.readUTF();
+                    index.put(word, readBitSet(input));
+                }
+                mIndexedPages.clear();
+                mIndexedPages.or(indexedPages);
+                mIndex.clear();
+                mIndex.putAll(index);
+                mComplete = true;
+            } catch (IOException e) {
+                Log.e(TAG, "failed to load index", e);
+                return false;
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onIndexUpdated();
+        }
+        return true;
+    }
+
+    static List<String> tokenize(String text) {
+        final List<String> words = new ArrayList<>();
+        final String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        boolean unspaced = false;
+        int i = 0;
+        while (i <= lowerCase.length()) {
+            final int codePoint = i < lowerCase.length() ? lowerCase.codePointAt(i) : -1;
+            final boolean wordChar = codePoint != -1 && isWordChar(codePoint);
+            final boolean unspacedChar = wordChar && isUnspaced(codePoint);
+            if (start != -1 && (!wordChar || unspacedChar != unspaced)) {
+                if (unspaced) {
+                    addCharacterPairs(lowerCase.substring(start, i), words);
+                } else {
+                    words.add(lowerCase.substring(start, i));
+                }
+                start = -1;
+            }
+            if (wordChar && start == -1) {
+                start = i;
+                unspaced = unspacedChar;
+            }
+            i += codePoint == -1 ? 1 : Character.charCount(codePoint);
+        }
+        return words;
+    }
+
+    // Marks are part of the word they're on, Thai and Devanagari vowel signs among them
+    private static boolean isWordChar(int codePoint) {
+        if (Character.isLetterOrDigit(codePoint)) {
+            return true;
+        }
+        final int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isUnspaced(int codePoint) {
+        switch (Character.UnicodeScript.of(codePoint)) {
+            case HAN:
+            case HIRAGANA:
+            case KATAKANA:
+            case THAI:
+            case LAO:
+            case KHMER:
+            case MYANMAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Every pair of adjacent characters, then the last character on its own so a single
+    // character matches wherever it appears when searched for as a prefix
+    private static void addCharacterPairs(String run, List<String> words) {
+        final int length = run.codePointCount(0, run.length());
+        int offset = 0;
+        for (int i = 0; i < length - 1; i++) {
+            final int next = run.offsetByCodePoints(offset, 1);
+            words.add(run.substring(offset, run.offsetByCodePoints(next, 1)));
+            offset = next;
+        }
+        words.add(run.substring(offset));
+    }
+
+    private static void writeBitSet(DataOutputStream output, BitSet bits) throws IOException {
+        final long[] words = bits.toLongArray();
+        output.writeInt(words.length);
+        for (final long word : words) {
+            output.writeLong(word);
+        }
+    }
+
+    private static BitSet readBitSet(DataInputStream input) throws IOException {
+        final long[] words = new long[input.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = input.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+}
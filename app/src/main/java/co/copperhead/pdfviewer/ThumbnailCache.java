@@ -0,0 +1,115 @@
+package co.copperhead.pdfviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.LruCache;
+
+/**
+ * Page thumbnails of the current document. Decoded bitmaps are kept in a size bounded memory
+ * cache in front of a disk cache shared across documents, where entries are keyed by document
+ * hash once it is known.
+ */
+public class ThumbnailCache {
+    public interface Listener {
+        /**
+         * Called on a background thread once a thumbnail is available from get.
+         */
+        void onThumbnailLoaded(int page);
+    }
+
+    private final PageCache mDiskCache;
+    private final int mWidth;
+    private final LruCache<Integer, Bitmap> mMemoryCache;
+    private volatile String mDocumentHash;
+    private volatile Listener mListener;
+
+    public ThumbnailCache(PageCache diskCache, int width, int maxMemoryBytes) {
+        mDiskCache = diskCache;
+        mWidth = width;
+        mMemoryCache = new LruCache<Integer, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(Integer page, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    private static String getKey(String documentHash, int page, int width) {
+        return String.format("%s-thumbnail-%d-%d", documentHash, page, width);
+    }
+
+    /**
+     * Width in pixels thumbnails are rendered at.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setDocumentHash(String documentHash) {
+        mDocumentHash = documentHash;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Bitmap get(int page) {
+        return mMemoryCache.get(page);
+    }
+
+    /**
+     * Moves a thumbnail from the disk cache into memory. Does disk I/O, returns whether it
+     * was found.
+     */
+    public boolean load(int page) {
+        if (mMemoryCache.get(page) != null) {
+            return true;
+        }
+        final String documentHash = mDocumentHash;
+        if (documentHash == null) {
+            return false;
+        }
+        final String data = mDiskCache.get(getKey(documentHash, page, mWidth));
+        return data != null && decode(page, data);
+    }
+
+    /**
+     * Stores a Base64 encoded thumbnail rendered by viewer.js. Does disk I/O.
+     */
+    public void put(int page, int width, String data) {
+        if (width != mWidth || !decode(page, data)) {
+            return;
+        }
+        final String documentHash = mDocumentHash;
+        if (documentHash != null) {
+            mDiskCache.put(getKey(documentHash, page, mWidth), data);
+        }
+    }
+
+    /**
+     * Shrinks the memory cache, level is one of the MemoryGovernor TRIM_ constants. Evicted
+     * thumbnails are loaded again from disk when needed.
+     */
+    public void trimMemory(int level) {
+        if (level >= MemoryGovernor.TRIM_CACHES) {
+            mMemoryCache.evictAll();
+        } else if (level >= MemoryGovernor.TRIM_OFFSCREEN) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    private boolean decode(int page, String data) {
+        final byte[] bytes = Base64.decode(data, Base64.DEFAULT);
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        if (bitmap == null) {
+            return false;
+        }
+        mMemoryCache.put(page, bitmap);
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onThumbnailLoaded(page);
+        }
+        return true;
+    }
+}
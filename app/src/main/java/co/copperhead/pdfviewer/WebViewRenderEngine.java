@@ -0,0 +1,609 @@
+package co.copperhead.pdfviewer;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders with pdf.js inside the WebView. Document bytes are served to it by PdfViewer's
+ * request interception and everything else is exchanged as JSON messages over a
+ * WebMessagePort, so neither side blocks on the other.
+ *
+ * The page and the pdf.js worker are loaded once and kept around, documents are opened and
+ * closed inside the running page instead of reloading it.
+ */
+public class WebViewRenderEngine implements RenderEngine {
+    private static final String TAG = "WebViewRenderEngine";
+
+    public static final String NAME = "pdf.js";
+
+    private static final String DOCUMENT_HOST = "localhost";
+    private static final String DOCUMENT_PATH = "/placeholder.pdf";
+    private static final String DOCUMENT_PARAMETER = "document";
+
+    /**
+     * Messages from the page. Called on a background thread, in the order they were sent, and
+     * only for messages about the open document. The open document can still change during a
+     * call, see getMessageGeneration.
+     */
+    public interface Listener {
+        void onNumPages(int numPages);
+
+        void onDocumentInfo(JSONObject info);
+
+        void onOutline(JSONArray outline);
+
+        void onPageLabels(JSONArray labels);
+
+        void onMetadataFinished();
+
+        void onPageChanged(int page);
+
+        /**
+         * Called once scrolling has come to rest, with the offset in CSS pixels.
+         */
+        void onScrollChanged(int scrollX, int scrollY);
+
+        void onStoreCachedPage(int page, float zoom, float ratio, String data);
+
+        /**
+         * Returns the page from the page cache, Base64 encoded, or null if it isn't cached.
+         * Does disk I/O.
+         */
+        String getCachedPage(int page, float zoom, float ratio);
+
+        /**
+         * Called once, after the metadata pass has visited every page.
+         */
+        void onPageIndex(String geometry, String labels);
+
+        /**
+         * Called once a pinch gesture settles with the zoom the page should be rendered at.
+         */
+        void onZoomChanged(float zoom);
+
+        void onThumbnail(int page, int width, String data);
+
+        void onSearchText(JSONArray pages);
+
+        void onSearchIndexFinished();
+
+        void onTiming(String stage, double millis);
+
+        void onCancellation();
+    }
+
+    public interface DestinationsCallback {
+        /**
+         * Receives the 1-based page of each destination, -1 for those that can't be resolved.
+         */
+        void onDestinationsResolved(int[] pages);
+    }
+
+    private final WebView mWebView;
+    private final Callback mCallback;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread mBridgeThread = new HandlerThread(TAG);
+    private final Handler mBridgeHandler;
+
+    private boolean mRuntimeLoading;
+    private WebMessagePort mPort;
+    // Sent once the page has been handed its end of the channel
+    private final List<String> mPendingMessages = new ArrayList<>();
+    // Read from the WebView's network thread in isDocumentRequest
+    private volatile int mGeneration;
+    // Generations are never reused, parked documents keep theirs
+    private int mNextGeneration;
+    // Generation of the message being dispatched, only accessed on the bridge thread
+    private int mMessageGeneration;
+
+    private int mStateVersion;
+    private boolean mStateFlushPending;
+    // Whether the pending flush changes anything that needs the page rendered again
+    private boolean mRenderRequested;
+    private int mPage = 1;
+    private float mZoom = 1f;
+    private boolean mContinuous;
+    private String mSearchQuery = "";
+    // What the host already has for the open document, the page skips building it again
+    private boolean mSearchIndexed;
+    private boolean mMetadataLoaded;
+    private boolean mPageIndexLoaded;
+    // The page index geometry is only sent once per open, as it can be sizable
+    private String mPageGeometry;
+    private boolean mPageGeometrySent;
+    private boolean mDocumentOpen;
+
+    // Only accessed on the main thread
+    private final SparseArray<DestinationsCallback> mDestinationsCallbacks = new SparseArray<>();
+    private int mNextRequestId;
+
+    private final Runnable mFlushState = new Runnable() {
+        @Override
+        public void run() {
+            mStateFlushPending = false;
+            final JSONObject message = new JSONObject();
+            try {
+                message.put("type", "state");
+                message.put("version", ++mStateVersion);
+                message.put("render", mRenderRequested);
+                message.put("page", mPage);
+                message.put("zoom", mZoom);
+                message.put("continuous", mContinuous);
+                message.put("searchQuery", mSearchQuery);
+                message.put("searchIndexed", mSearchIndexed);
+                message.put("metadataLoaded", mMetadataLoaded);
+                message.put("pageIndexLoaded", mPageIndexLoaded);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            mRenderRequested = false;
+            post(message.toString());
+        }
+    };
+
+    private final WebMessagePort.WebMessageCallback mMessageCallback = new WebMessagePort.WebMessageCallback() {
+        @Override
+        public void onMessage(WebMessagePort port, WebMessage message) {
+            try {
+                final JSONArray batch = new JSONArray(message.getData());
+                for (int i = 0; i < batch.length(); i++) {
+                    dispatch(batch.getJSONObject(i));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "invalid message", e);
+            }
+        }
+    };
+
+    public WebViewRenderEngine(WebView webView, Callback callback, Listener listener) {
+        mWebView = webView;
+        mCallback = callback;
+        mListener = listener;
+        mBridgeThread.start();
+        mBridgeHandler = new Handler(mBridgeThread.getLooper());
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public View getView() {
+        return mWebView;
+    }
+
+    /**
+     * Starts loading the viewer page and the pdf.js worker ahead of the first document.
+     */
+    public void prewarm() {
+        if (!mRuntimeLoading) {
+            mRuntimeLoading = true;
+            mWebView.loadUrl("file:///android_asset/viewer.html");
+        }
+    }
+
+    /**
+     * Called once the viewer page has finished loading, hands it one end of the message channel.
+     */
+    public void onRuntimeLoaded() {
+        if (mPort != null) {
+            return;
+        }
+        final WebMessagePort[] ports = mWebView.createWebMessageChannel();
+        mPort = ports[0];
+        mPort.setWebMessageCallback(mMessageCallback, mBridgeHandler);
+        mWebView.postWebMessage(new WebMessage("bridge", new WebMessagePort[] { ports[1] }),
+                Uri.parse("*"));
+        for (final String message : mPendingMessages) {
+            mPort.postMessage(new WebMessage(message));
+        }
+        mPendingMessages.clear();
+    }
+
+    /**
+     * Whether the request is for the document currently open, requests still in flight for a
+     * previous one must not be served the new document's bytes.
+     */
+    public boolean isDocumentRequest(Uri url) {
+        if (!"https".equals(url.getScheme()) || !DOCUMENT_HOST.equals(url.getHost()) ||
+                !DOCUMENT_PATH.equals(url.getPath())) {
+            return false;
+        }
+        return String.valueOf(mGeneration).equals(url.getQueryParameter(DOCUMENT_PARAMETER));
+    }
+
+    public void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+    }
+
+    public void setSearchQuery(String searchQuery) {
+        mSearchQuery = searchQuery;
+    }
+
+    /**
+     * Sets the page and zoom the first page of the next document is rendered with.
+     */
+    public void setPosition(int page, float zoom) {
+        mPage = page;
+        mZoom = zoom;
+    }
+
+    /**
+     * Tells the page what the host already has for the open document: a complete search
+     * index, complete metadata and the page index, its geometry in the form the page sent it
+     * or null. Sent along with the viewer state, changes alone don't render the page again.
+     */
+    public void setDocumentState(boolean searchIndexed, boolean metadataLoaded,
+            String pageGeometry) {
+        mPageGeometry = pageGeometry;
+        postPageGeometry();
+        final boolean pageIndexLoaded = pageGeometry != null;
+        if (searchIndexed == mSearchIndexed && metadataLoaded == mMetadataLoaded &&
+                pageIndexLoaded == mPageIndexLoaded) {
+            return;
+        }
+        mSearchIndexed = searchIndexed;
+        mMetadataLoaded = metadataLoaded;
+        mPageIndexLoaded = pageIndexLoaded;
+        scheduleStateFlush(false);
+    }
+
+    /**
+     * Sets the bytes of rendered surfaces the page may hold on to, it degrades to smaller
+     * surfaces rather than going over.
+     */
+    public void setSurfaceBudget(long bytes) {
+        try {
+            post(new JSONObject().put("type", "surfaceBudget").put("bytes", bytes).toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        try {
+            post(new JSONObject().put("type", "trimMemory").put("level", level).toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Moves the open document to a saved position, scrolled to the given offset in CSS pixels
+     * once the page has been laid out.
+     */
+    public void restorePosition(int page, float zoom, int scrollX, int scrollY) {
+        try {
+            post(new JSONObject()
+                    .put("type", "scroll")
+                    .put("x", scrollX)
+                    .put("y", scrollY)
+                    .toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        mPage = page;
+        mZoom = zoom;
+        // Flushed even if the page and zoom are unchanged so the offset gets applied
+        scheduleStateFlush();
+    }
+
+    /**
+     * Replaces the queue of thumbnails to render in the background, in the order given.
+     */
+    public void renderThumbnails(int[] pages, int width) {
+        final JSONArray json = new JSONArray();
+        for (final int page : pages) {
+            json.put(page);
+        }
+        try {
+            post(new JSONObject()
+                    .put("type", "renderThumbnails")
+                    .put("pages", json)
+                    .put("width", width)
+                    .toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts extracting the text of the open document for the search index, in idle time and
+     * only for as long as the document stays open.
+     */
+    public void indexSearch() {
+        post("{\"type\":\"indexSearch\"}");
+    }
+
+    /**
+     * Looks up the pages of outline destinations in pdf.js, as JSON encoded names or arrays.
+     */
+    public void resolveDestinations(String[] destinations, DestinationsCallback callback) {
+        final int requestId = mNextRequestId++;
+        mDestinationsCallbacks.put(requestId, callback);
+        try {
+            post(new JSONObject()
+                    .put("type", "resolveDestinations")
+                    .put("requestId", requestId)
+                    .put("destinations", new JSONArray(Arrays.asList(destinations)))
+                    .toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void open(Uri uri) {
+        mGeneration = ++mNextGeneration;
+        prewarm();
+        postOpen();
+    }
+
+    /**
+     * Returns the generation of the open document, which identifies it once parked.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the generation of the document the message being dispatched to the listener is
+     * about. Per-document state is only replaced after getGeneration has moved on, so state
+     * read in a callback belongs to the message as long as the two still match afterwards.
+     */
+    public int getMessageGeneration() {
+        return mMessageGeneration;
+    }
+
+    /**
+     * Stops passing on messages about the open document, before replacing the state they would
+     * be applied to. A document is opened, resumed or closed afterwards.
+     */
+    public void detach() {
+        mGeneration = ++mNextGeneration;
+        dropDocumentState();
+    }
+
+    /**
+     * Switches away from the open document while keeping it loaded in pdf.js, so it can be
+     * resumed without fetching and parsing it again.
+     */
+    public void park() {
+        mGeneration = ++mNextGeneration;
+        dropDocumentState();
+        post("{\"type\":\"park\"}");
+    }
+
+    /**
+     * Shows a parked document again, with the position set beforehand.
+     */
+    public void resume(int generation) {
+        mGeneration = generation;
+        postOpen();
+    }
+
+    /**
+     * Closes a parked document for good.
+     */
+    public void evict(int generation) {
+        try {
+            post(new JSONObject().put("type", "evict").put("generation", generation).toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void postOpen() {
+        try {
+            post(new JSONObject().put("type", "open").put("generation", mGeneration).toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        mDocumentOpen = true;
+        mPageGeometrySent = false;
+        postPageGeometry();
+        // The page picks up the state to render the first page with from this
+        scheduleStateFlush();
+    }
+
+    /**
+     * State changes made within the same main thread task go out as a single versioned
+     * message, the page drops any older than the one it already has.
+     */
+    @Override
+    public void renderPage(int page, float zoom) {
+        mPage = page;
+        mZoom = zoom;
+        scheduleStateFlush();
+    }
+
+    private void scheduleStateFlush() {
+        scheduleStateFlush(true);
+    }
+
+    private void scheduleStateFlush(boolean render) {
+        mRenderRequested |= render;
+        if (!mStateFlushPending) {
+            mStateFlushPending = true;
+            mHandler.post(mFlushState);
+        }
+    }
+
+    private void post(String message) {
+        if (mPort == null) {
+            mPendingMessages.add(message);
+        } else {
+            mPort.postMessage(new WebMessage(message));
+        }
+    }
+
+    private void postPageGeometry() {
+        if (!mDocumentOpen || mPageGeometry == null || mPageGeometrySent) {
+            return;
+        }
+        mPageGeometrySent = true;
+        try {
+            post(new JSONObject().put("type", "pageGeometry").put("generation", mGeneration)
+                    .put("geometry", mPageGeometry).toString());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void dispatch(JSONObject message) throws JSONException {
+        final String type = message.getString("type");
+        if ("error".equals(type)) {
+            Log.e(TAG, message.getString("message"));
+            return;
+        }
+        // About a document that has since been closed or parked
+        final int generation = message.getInt("generation");
+        if (generation != mGeneration) {
+            return;
+        }
+        mMessageGeneration = generation;
+        switch (type) {
+            case "numPages":
+                mListener.onNumPages(message.getInt("numPages"));
+                break;
+            case "documentInfo":
+                mListener.onDocumentInfo(message.getJSONObject("info"));
+                break;
+            case "outline":
+                mListener.onOutline(message.optJSONArray("outline"));
+                break;
+            case "pageLabels":
+                mListener.onPageLabels(message.optJSONArray("labels"));
+                break;
+            case "metadataFinished":
+                mListener.onMetadataFinished();
+                break;
+            case "page":
+                mListener.onPageChanged(message.getInt("page"));
+                break;
+            case "scroll":
+                mListener.onScrollChanged(message.getInt("x"), message.getInt("y"));
+                break;
+            case "storeCachedPage":
+                mListener.onStoreCachedPage(message.getInt("page"), (float) message.getDouble("zoom"),
+                        (float) message.getDouble("ratio"), message.getString("data"));
+                break;
+            case "getCachedPage": {
+                final int requestId = message.getInt("requestId");
+                final String data = mListener.getCachedPage(message.getInt("page"),
+                        (float) message.getDouble("zoom"), (float) message.getDouble("ratio"));
+                final String reply = new JSONObject().put("type", "cachedPage")
+                        .put("requestId", requestId).put("data", data != null ? data : JSONObject.NULL)
+                        .toString();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        post(reply);
+                    }
+                });
+                break;
+            }
+            case "pageIndex":
+                mListener.onPageIndex(message.getString("geometry"),
+                        message.isNull("labels") ? null : message.getJSONArray("labels").toString());
+                break;
+            case "zoom":
+                mListener.onZoomChanged((float) message.getDouble("zoom"));
+                break;
+            case "thumbnail":
+                mListener.onThumbnail(message.getInt("page"), message.getInt("width"),
+                        message.getString("data"));
+                break;
+            case "searchText":
+                mListener.onSearchText(message.getJSONArray("pages"));
+                break;
+            case "searchIndexFinished":
+                mListener.onSearchIndexFinished();
+                break;
+            case "timing":
+                mListener.onTiming(message.getString("stage"), message.getDouble("millis"));
+                break;
+            case "cancellation":
+                mListener.onCancellation();
+                break;
+            case "rendered": {
+                final double millis = message.getDouble("millis");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onPageRendered(millis);
+                    }
+                });
+                break;
+            }
+            case "destinations": {
+                final int requestId = message.getInt("requestId");
+                final JSONArray json = message.getJSONArray("pages");
+                final int[] pages = new int[json.length()];
+                for (int i = 0; i < pages.length; i++) {
+                    pages[i] = json.getInt(i);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final DestinationsCallback callback = mDestinationsCallbacks.get(requestId);
+                        if (callback != null) {
+                            mDestinationsCallbacks.remove(requestId);
+                            callback.onDestinationsResolved(pages);
+                        }
+                    }
+                });
+                break;
+            }
+            default:
+                Log.e(TAG, "unknown message type: " + type);
+        }
+    }
+
+    @Override
+    public void close() {
+        mGeneration = ++mNextGeneration;
+        dropDocumentState();
+        post("{\"type\":\"close\"}");
+    }
+
+    private void dropDocumentState() {
+        mHandler.removeCallbacks(mFlushState);
+        mStateFlushPending = false;
+        mRenderRequested = false;
+        mDocumentOpen = false;
+        mPageGeometry = null;
+        // Destinations of the closed document are useless to whoever asked
+        mDestinationsCallbacks.clear();
+    }
+
+    @Override
+    public void destroy() {
+        mHandler.removeCallbacks(mFlushState);
+        if (mPort != null) {
+            mPort.close();
+            mPort = null;
+        }
+        mBridgeThread.quitSafely();
+        mWebView.destroy();
+    }
+}
@@ -0,0 +1,40 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.os.Bundle;
+
+import java.util.List;
+
+import co.copperhead.pdfviewer.DocumentSession;
+import co.copperhead.pdfviewer.PdfViewer;
+import co.copperhead.pdfviewer.R;
+
+/**
+ * Lists the documents still open in the background, most recently viewed first, and switches
+ * to the one picked.
+ */
+public class DocumentsFragment extends DialogFragment {
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final PdfViewer viewer = (PdfViewer) getActivity();
+        final List<DocumentSession.Entry> entries = viewer.getSession().getEntries();
+        final String[] titles = new String[entries.size()];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = entries.get(i).getTitle();
+        }
+
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.action_documents)
+                .setItems(titles, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        ((PdfViewer) getActivity()).switchDocument(entries.get(which).generation);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+}
@@ -0,0 +1,211 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.pdf.PdfRenderer;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import co.copperhead.pdfviewer.PageRasterizer;
+import co.copperhead.pdfviewer.R;
+
+/**
+ * Exports every page as a PNG into a zip archive, showing progress until it's done. The
+ * fragment is retained so the export carries on across configuration changes.
+ */
+public class ExportPagesFragment extends DialogFragment {
+    private static final String TAG = "ExportPagesFragment";
+
+    private static final String KEY_SOURCE = "key_source";
+    private static final String KEY_OUTPUT = "key_output";
+    private static final String KEY_NUM_PAGES = "key_num_pages";
+    private static final int DPI = 150;
+
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ProgressBar mProgressBar;
+    private TextView mProgressText;
+    private int mDone;
+
+    public static ExportPagesFragment newInstance(Uri source, Uri output, int numPages) {
+        final ExportPagesFragment fragment = new ExportPagesFragment();
+        final Bundle args = new Bundle();
+        args.putParcelable(KEY_SOURCE, source);
+        args.putParcelable(KEY_OUTPUT, output);
+        args.putInt(KEY_NUM_PAGES, numPages);
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        setCancelable(false);
+
+        final Context context = getActivity().getApplicationContext();
+        final Uri source = getArguments().getParcelable(KEY_SOURCE);
+        final Uri output = getArguments().getParcelable(KEY_OUTPUT);
+        final int numPages = getArguments().getInt(KEY_NUM_PAGES);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                export(context, source, output, numPages);
+            }
+        }, "export").start();
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final int numPages = getArguments().getInt(KEY_NUM_PAGES);
+        mProgressBar = new ProgressBar(getActivity(), null, android.R.attr.progressBarStyleHorizontal);
+        mProgressBar.setMax(numPages);
+        mProgressText = new TextView(getActivity());
+        showProgress(numPages);
+
+        final int padding = Math.round(16 * getResources().getDisplayMetrics().density);
+        final LinearLayout layout = new LinearLayout(getActivity());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(padding, padding, padding, 0);
+        layout.addView(mProgressBar);
+        layout.addView(mProgressText);
+
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.action_export_pages)
+                .setView(layout)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Set here instead of through the builder so the dialog isn't dismissed before the
+        // export has stopped and cleaned up
+        ((AlertDialog) getDialog()).getButton(AlertDialog.BUTTON_NEGATIVE).setOnClickListener(
+                new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        mCancellationSignal.cancel();
+                    }
+                });
+    }
+
+    @Override
+    public void onDestroyView() {
+        // Retained dialog fragments are otherwise dismissed when the activity is recreated
+        if (getDialog() != null && getRetainInstance()) {
+            getDialog().setDismissMessage(null);
+        }
+        super.onDestroyView();
+        mProgressBar = null;
+        mProgressText = null;
+    }
+
+    private void showProgress(int numPages) {
+        if (mProgressBar != null) {
+            mProgressBar.setProgress(mDone);
+            mProgressText.setText(getString(R.string.export_progress, mDone, numPages));
+        }
+    }
+
+    // Runs on the export thread
+    private void export(final Context context, Uri source, Uri output, final int numPages) {
+        final ContentResolver resolver = context.getContentResolver();
+        final int[] pages = new int[numPages];
+        for (int i = 0; i < numPages; i++) {
+            pages[i] = i + 1;
+        }
+        final String nameFormat = "page-%0" + String.valueOf(numPages).length() + "d.png";
+
+        int result;
+        try (ParcelFileDescriptor fileDescriptor = openOutput(resolver, output);
+             ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(fileDescriptor.getFileDescriptor())))) {
+            // PNG is compressed already
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            new PageRasterizer(resolver, source, DPI, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY)
+                    .rasterize(pages, new PageRasterizer.Sink() {
+                        @Override
+                        public void onPage(int page, Bitmap bitmap) throws IOException {
+                            zip.putNextEntry(new ZipEntry(String.format(Locale.ROOT, nameFormat, page)));
+                            bitmap.compress(Bitmap.CompressFormat.PNG, 100, zip);
+                            zip.closeEntry();
+                        }
+                    }, new PageRasterizer.ProgressListener() {
+                        @Override
+                        public void onProgress(final int done, int total) {
+                            mHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mDone = done;
+                                    showProgress(numPages);
+                                }
+                            });
+                        }
+                    }, mCancellationSignal);
+            result = R.string.export_finished;
+        } catch (OperationCanceledException e) {
+            result = 0;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "failed to export pages", e);
+            result = R.string.export_failed;
+        }
+        if (result != R.string.export_finished) {
+            // A partial archive is worse than none
+            try {
+                DocumentsContract.deleteDocument(resolver, output);
+            } catch (FileNotFoundException | RuntimeException e) {
+                Log.e(TAG, "failed to delete partial export", e);
+            }
+        }
+
+        final int message = result;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (message != 0) {
+                    Toast.makeText(context, context.getString(message, numPages),
+                            Toast.LENGTH_SHORT).show();
+                }
+                if (isAdded()) {
+                    dismissAllowingStateLoss();
+                }
+            }
+        });
+    }
+
+    private static ParcelFileDescriptor openOutput(ContentResolver resolver, Uri output)
+            throws IOException {
+        final ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(output, "w");
+        if (fileDescriptor == null) {
+            throw new IOException("no file descriptor for " + output);
+        }
+        return fileDescriptor;
+    }
+}
@@ -34,6 +34,11 @@ public class JumpToPageFragment extends DialogFragment {
         mPicker.setMinValue(1);
         mPicker.setMaxValue(((PdfViewer)getActivity()).mNumPages);
         mPicker.setValue(((PdfViewer)getActivity()).mPage);
+        // Lets pages be picked, and typed, by the label printed on them
+        final String[] labels = ((PdfViewer)getActivity()).getMetadata().getPageLabels();
+        if (labels != null && labels.length == mPicker.getMaxValue()) {
+            mPicker.setDisplayedValues(labels);
+        }
 
         final FrameLayout layout = new FrameLayout(getActivity());
         layout.addView(mPicker, new FrameLayout.LayoutParams(
@@ -0,0 +1,43 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+
+import co.copperhead.pdfviewer.R;
+
+public class MetricsFragment extends DialogFragment {
+    private static final String KEY_SUMMARY = "key_summary";
+    private static final String KEY_JSON = "key_json";
+
+    public static MetricsFragment newInstance(final String summary, final String json) {
+        final MetricsFragment fragment = new MetricsFragment();
+        final Bundle args = new Bundle();
+        args.putString(KEY_SUMMARY, summary);
+        args.putString(KEY_JSON, json);
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final String json = getArguments().getString(KEY_JSON);
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(getString(R.string.action_view_metrics))
+                .setMessage(getArguments().getString(KEY_SUMMARY))
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.metrics_export, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        final Intent intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType("application/json");
+                        intent.putExtra(Intent.EXTRA_TEXT, json);
+                        startActivity(Intent.createChooser(intent, getString(R.string.metrics_export)));
+                    }
+                })
+                .create();
+    }
+}
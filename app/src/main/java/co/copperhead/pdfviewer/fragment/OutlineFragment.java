@@ -0,0 +1,217 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.Context;
+import android.os.Bundle;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import co.copperhead.pdfviewer.DocumentMetadata;
+import co.copperhead.pdfviewer.DocumentMetadata.OutlineItem;
+import co.copperhead.pdfviewer.PdfViewer;
+import co.copperhead.pdfviewer.R;
+
+public class OutlineFragment extends DialogFragment {
+    private static final int INDENT_DP = 16;
+    private static final int TOGGLE_WIDTH_DP = 32;
+    private static final int PADDING_DP = 8;
+
+    private static class Row {
+        final OutlineItem item;
+        final int depth;
+
+        Row(OutlineItem item, int depth) {
+            this.item = item;
+            this.depth = depth;
+        }
+    }
+
+    private static class RowViews {
+        TextView toggle;
+        TextView title;
+        TextView page;
+    }
+
+    private List<OutlineItem> mOutline;
+    private final Set<OutlineItem> mExpanded = new HashSet<>();
+    private final List<Row> mRows = new ArrayList<>();
+    private DocumentMetadata mMetadata;
+    private OutlineAdapter mAdapter;
+    private float mDensity;
+
+    private class OutlineAdapter extends BaseAdapter {
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public Row getItem(int position) {
+            return mRows.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final View view = convertView != null ? convertView : createRowView(parent.getContext());
+            final RowViews views = (RowViews) view.getTag();
+            final Row row = getItem(position);
+            final OutlineItem item = row.item;
+
+            view.setPadding(dp(PADDING_DP + row.depth * INDENT_DP), dp(PADDING_DP),
+                    dp(PADDING_DP), dp(PADDING_DP));
+            if (item.children.isEmpty()) {
+                views.toggle.setText(null);
+                views.toggle.setOnClickListener(null);
+                views.toggle.setClickable(false);
+            } else {
+                views.toggle.setText(mExpanded.contains(item) ? "▾" : "▸");
+                views.toggle.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        toggle(item);
+                    }
+                });
+            }
+            views.title.setText(item.title);
+            views.page.setText(item.getPage() > 0 ? mMetadata.getPageLabel(item.getPage()) : null);
+            return view;
+        }
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final PdfViewer viewer = (PdfViewer) getActivity();
+        mDensity = getResources().getDisplayMetrics().density;
+        mMetadata = viewer.getMetadata();
+        mOutline = mMetadata.getOutline();
+
+        final AlertDialog.Builder builder = new AlertDialog.Builder(viewer)
+                .setTitle(R.string.action_outline)
+                .setNegativeButton(android.R.string.cancel, null);
+
+        if (mOutline == null || mOutline.isEmpty()) {
+            return builder.setMessage(mOutline == null ? R.string.outline_loading : R.string.outline_empty)
+                    .create();
+        }
+
+        mAdapter = new OutlineAdapter();
+        final ListView list = new ListView(viewer);
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                select(mRows.get(position).item);
+            }
+        });
+
+        updateRows();
+        resolvePages(mOutline);
+
+        return builder.setView(list).create();
+    }
+
+    private View createRowView(Context context) {
+        final RowViews views = new RowViews();
+        views.toggle = new TextView(context);
+        views.toggle.setGravity(Gravity.CENTER);
+        views.title = new TextView(context);
+        views.title.setTextAppearance(android.R.style.TextAppearance_Material_Subhead);
+        views.page = new TextView(context);
+        views.page.setPadding(dp(PADDING_DP), 0, 0, 0);
+
+        final LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.HORIZONTAL);
+        layout.setGravity(Gravity.CENTER_VERTICAL);
+        layout.addView(views.toggle, new LinearLayout.LayoutParams(dp(TOGGLE_WIDTH_DP),
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        layout.addView(views.title, new LinearLayout.LayoutParams(0,
+                ViewGroup.LayoutParams.WRAP_CONTENT, 1));
+        layout.addView(views.page);
+        layout.setTag(views);
+        return layout;
+    }
+
+    private int dp(int value) {
+        return Math.round(value * mDensity);
+    }
+
+    // Children are only resolved when their parent is expanded
+    private void toggle(OutlineItem item) {
+        if (!mExpanded.remove(item)) {
+            mExpanded.add(item);
+            resolvePages(item.children);
+        }
+        updateRows();
+    }
+
+    private void select(final OutlineItem item) {
+        final int page = item.getPage();
+        if (page > 0) {
+            ((PdfViewer) getActivity()).positiveButtonRenderPage(page);
+            dismiss();
+        } else if (page == 0) {
+            // Tapped before its page was looked up
+            resolvePages(Collections.singletonList(item), new Runnable() {
+                @Override
+                public void run() {
+                    select(item);
+                }
+            });
+        } else if (!item.children.isEmpty()) {
+            toggle(item);
+        }
+    }
+
+    private void resolvePages(List<OutlineItem> items) {
+        resolvePages(items, null);
+    }
+
+    private void resolvePages(List<OutlineItem> items, final Runnable then) {
+        ((PdfViewer) getActivity()).resolveOutlinePages(items, new Runnable() {
+            @Override
+            public void run() {
+                if (!isAdded()) {
+                    return;
+                }
+                mAdapter.notifyDataSetChanged();
+                if (then != null) {
+                    then.run();
+                }
+            }
+        });
+    }
+
+    private void updateRows() {
+        mRows.clear();
+        addRows(mOutline, 0);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void addRows(List<OutlineItem> items, int depth) {
+        for (final OutlineItem item : items) {
+            mRows.add(new Row(item, depth));
+            if (mExpanded.contains(item)) {
+                addRows(item.children, depth + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.List;
+
+import co.copperhead.pdfviewer.PdfViewer;
+import co.copperhead.pdfviewer.R;
+import co.copperhead.pdfviewer.SearchIndex;
+
+public class SearchFragment extends DialogFragment implements SearchIndex.Listener {
+    private EditText mQuery;
+    private TextView mStatus;
+    private ArrayAdapter<String> mAdapter;
+    private List<Integer> mResults;
+    private SearchIndex mSearchIndex;
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final PdfViewer viewer = (PdfViewer) getActivity();
+        mSearchIndex = viewer.getSearchIndex();
+
+        mQuery = new EditText(viewer);
+        mQuery.setHint(R.string.search_hint);
+        mQuery.setSingleLine();
+        mQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateResults();
+            }
+        });
+
+        mStatus = new TextView(viewer);
+
+        mAdapter = new ArrayAdapter<>(viewer, android.R.layout.simple_list_item_1);
+        final ListView list = new ListView(viewer);
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                ((PdfViewer) getActivity()).showSearchResult(mQuery.getText().toString(),
+                        mResults.get(position));
+                dismiss();
+            }
+        });
+
+        final LinearLayout layout = new LinearLayout(viewer);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(mQuery);
+        layout.addView(mStatus);
+        layout.addView(list);
+
+        updateResults();
+
+        return new AlertDialog.Builder(viewer)
+                .setTitle(R.string.action_search)
+                .setView(layout)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mSearchIndex.setListener(this);
+        updateResults();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mSearchIndex.setListener(null);
+    }
+
+    // Called from the JavaScript bridge thread as batches of pages are indexed
+    @Override
+    public void onIndexUpdated() {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (isAdded()) {
+                        updateResults();
+                    }
+                }
+            });
+        }
+    }
+
+    private void updateResults() {
+        final PdfViewer viewer = (PdfViewer) getActivity();
+        if (mSearchIndex.isComplete()) {
+            mStatus.setVisibility(View.GONE);
+        } else {
+            mStatus.setVisibility(View.VISIBLE);
+            mStatus.setText(getString(R.string.search_indexing,
+                    mSearchIndex.getIndexedPageCount(), viewer.mNumPages));
+        }
+
+        mResults = mSearchIndex.search(mQuery.getText().toString());
+        mAdapter.clear();
+        for (final int page : mResults) {
+            mAdapter.add(getString(R.string.search_result_page, page));
+        }
+    }
+}
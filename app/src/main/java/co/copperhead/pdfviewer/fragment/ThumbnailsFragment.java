@@ -0,0 +1,196 @@
+package co.copperhead.pdfviewer.fragment;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import co.copperhead.pdfviewer.DocumentMetadata;
+import co.copperhead.pdfviewer.PdfViewer;
+import co.copperhead.pdfviewer.R;
+import co.copperhead.pdfviewer.ThumbnailCache;
+
+public class ThumbnailsFragment extends DialogFragment implements ThumbnailCache.Listener {
+    private static final int SPACING_DP = 8;
+    // Rows past the visible ones whose thumbnails are queued after the visible ones
+    private static final int LOOKAHEAD_ROWS = 2;
+
+    private static class CellViews {
+        ImageView image;
+        TextView label;
+    }
+
+    private ThumbnailCache mThumbnailCache;
+    private DocumentMetadata mMetadata;
+    private GridView mGrid;
+    private int mNumPages;
+    private int mRequestedFirst = -1;
+    private int mRequestedLast = -1;
+
+    private class ThumbnailAdapter extends BaseAdapter {
+        @Override
+        public int getCount() {
+            return mNumPages;
+        }
+
+        @Override
+        public Integer getItem(int position) {
+            return position + 1;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final View view = convertView != null ? convertView : createCellView(parent.getContext());
+            bindCell(view, getItem(position));
+            return view;
+        }
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final PdfViewer viewer = (PdfViewer) getActivity();
+        mThumbnailCache = viewer.getThumbnailCache();
+        mMetadata = viewer.getMetadata();
+        mNumPages = viewer.mNumPages;
+
+        final int spacing = Math.round(SPACING_DP * getResources().getDisplayMetrics().density);
+        mGrid = new GridView(viewer);
+        mGrid.setNumColumns(GridView.AUTO_FIT);
+        mGrid.setColumnWidth(mThumbnailCache.getWidth() + spacing);
+        mGrid.setHorizontalSpacing(spacing);
+        mGrid.setVerticalSpacing(spacing);
+        mGrid.setPadding(spacing, spacing, spacing, spacing);
+        mGrid.setStretchMode(GridView.STRETCH_SPACING);
+        mGrid.setAdapter(new ThumbnailAdapter());
+        mGrid.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                ((PdfViewer) getActivity()).positiveButtonRenderPage(position + 1);
+                dismiss();
+            }
+        });
+        mGrid.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                requestVisible(firstVisibleItem, visibleItemCount);
+            }
+        });
+        mGrid.setSelection(viewer.mPage - 1);
+
+        return new AlertDialog.Builder(viewer)
+                .setTitle(R.string.action_thumbnails)
+                .setView(mGrid)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mThumbnailCache.setListener(this);
+        requestVisible(mGrid.getFirstVisiblePosition(), mGrid.getChildCount());
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mThumbnailCache.setListener(null);
+        // Drop whatever is still queued, nobody is looking at it anymore
+        ((PdfViewer) getActivity()).requestThumbnails(new int[0]);
+        mRequestedFirst = -1;
+        mRequestedLast = -1;
+    }
+
+    private View createCellView(Context context) {
+        final CellViews views = new CellViews();
+        views.image = new ImageView(context);
+        views.image.setAdjustViewBounds(true);
+        views.image.setBackgroundColor(Color.WHITE);
+        views.image.setMinimumHeight(mThumbnailCache.getWidth());
+        views.label = new TextView(context);
+        views.label.setGravity(Gravity.CENTER_HORIZONTAL);
+
+        final LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(views.image, new LinearLayout.LayoutParams(mThumbnailCache.getWidth(),
+                ViewGroup.LayoutParams.WRAP_CONTENT));
+        layout.addView(views.label, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        layout.setTag(views);
+        return layout;
+    }
+
+    private void bindCell(View view, int page) {
+        final CellViews views = (CellViews) view.getTag();
+        final Bitmap bitmap = mThumbnailCache.get(page);
+        views.image.setImageBitmap(bitmap);
+        views.image.setMinimumHeight(bitmap == null ? mThumbnailCache.getWidth() : 0);
+        views.label.setText(mMetadata.getPageLabel(page));
+    }
+
+    // Visible pages go first so they fill in before anything scrolled out of view
+    private void requestVisible(int first, int count) {
+        if (count == 0 || (first == mRequestedFirst && first + count - 1 == mRequestedLast)) {
+            return;
+        }
+        mRequestedFirst = first;
+        mRequestedLast = first + count - 1;
+
+        final int lookahead = Math.max(1, mGrid.getNumColumns()) * LOOKAHEAD_ROWS;
+        final int end = Math.min(mNumPages, first + count + lookahead);
+        final int start = Math.max(0, first - lookahead);
+        final int[] pages = new int[end - start];
+        int i = 0;
+        for (int position = first; position < end; position++) {
+            pages[i++] = position + 1;
+        }
+        for (int position = first - 1; position >= start; position--) {
+            pages[i++] = position + 1;
+        }
+        ((PdfViewer) getActivity()).requestThumbnails(pages);
+    }
+
+    // Called on a background thread as thumbnails are loaded or rendered
+    @Override
+    public void onThumbnailLoaded(final int page) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    final View view = mGrid.getChildAt(page - 1 - mGrid.getFirstVisiblePosition());
+                    if (view != null) {
+                        bindCell(view, page);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package co.copperhead.pdfviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DocumentPropertiesParserTest {
+    private Locale mDefaultLocale;
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultLocale = Locale.getDefault();
+        mDefaultTimeZone = TimeZone.getDefault();
+        // File sizes use the default locale's separators
+        Locale.setDefault(Locale.US);
+        // Results must not depend on the device's time zone
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    private static String parseDate(String date) {
+        return DocumentPropertiesParser.parseDate(date, Locale.US);
+    }
+
+    @Test
+    public void parseDateFull() {
+        assertEquals("02.01.2017 03:04:05", parseDate("D:20170102030405"));
+        assertEquals("02.01.2017 03:04:05", parseDate("20170102030405"));
+    }
+
+    @Test
+    public void parseDateOptionalFields() {
+        assertEquals("01.01.2017 00:00:00", parseDate("D:2017"));
+        assertEquals("01.03.2017 00:00:00", parseDate("D:201703"));
+        assertEquals("15.03.2017 00:00:00", parseDate("D:20170315"));
+        assertEquals("15.03.2017 09:30:00", parseDate("D:201703150930"));
+    }
+
+    @Test
+    public void parseDateMissing() {
+        assertEquals("-", parseDate("-"));
+    }
+
+    @Test
+    public void parseDateUniversalTime() {
+        assertEquals("02.01.2017 03:04:05", parseDate("D:20170102030405Z"));
+        assertEquals("02.01.2017 03:04:05", parseDate("D:20170102030405Z00'00'"));
+    }
+
+    @Test
+    public void parseDatePositiveOffset() {
+        // Local time ahead of UT, so UT is earlier
+        assertEquals("01.10.2017 10:00:00", parseDate("D:20171001120000+02'00'"));
+        assertEquals("01.10.2017 06:30:00", parseDate("D:20171001120000+05'30'"));
+        // Crosses into the previous day
+        assertEquals("31.12.2016 23:00:00", parseDate("D:20170101010000+02'00'"));
+    }
+
+    @Test
+    public void parseDateNegativeOffset() {
+        assertEquals("01.10.2017 17:00:00", parseDate("D:20171001120000-05'00'"));
+        // Crosses into the next day
+        assertEquals("01.01.2018 02:00:00", parseDate("D:20171231220000-04'00'"));
+    }
+
+    @Test
+    public void parseDateOffsetWithoutSeconds() {
+        assertEquals("01.10.2017 10:00:00", parseDate("D:201710011200+02'00'"));
+    }
+
+    @Test
+    public void parseDateOffsetOutOfRange() {
+        assertNull(parseDate("D:20171001120000+15'00'"));
+        assertNull(parseDate("D:20171001120000-13'00'"));
+    }
+
+    @Test
+    public void parseDateMalformed() {
+        assertNull(parseDate("D:20"));
+        assertNull(parseDate("D:abcd"));
+        assertNull(parseDate("2017AB"));
+        assertNull(parseDate("D:20171301"));
+        assertNull(parseDate("D:20170100"));
+        assertNull(parseDate("D:20170132"));
+        assertNull(parseDate("D:2017010124"));
+        assertNull(parseDate("D:201701011260"));
+        assertNull(parseDate("D:20170101120060"));
+        assertNull(parseDate("D:20170101120000+ab'cd'"));
+        assertNull(parseDate("D:20170101120000+02'00'trailing"));
+    }
+
+    @Test
+    public void parseDateYearOutOfRange() {
+        // Years before the epoch or in the future fall back to 1970
+        assertEquals("01.01.1970 00:00:00", parseDate("D:1900"));
+        assertEquals("01.01.1970 00:00:00", parseDate("D:9999"));
+    }
+
+    @Test
+    public void parseFileSizeBytes() {
+        assertEquals("0 bytes", DocumentPropertiesParser.parseFileSize(0));
+        assertEquals("999 bytes", DocumentPropertiesParser.parseFileSize(999));
+    }
+
+    @Test
+    public void parseFileSizeKilobytes() {
+        assertEquals("1 kB (1000 bytes)", DocumentPropertiesParser.parseFileSize(1000));
+        // Whole kilobytes, the remainder is dropped
+        assertEquals("1 kB (1999 bytes)", DocumentPropertiesParser.parseFileSize(1999));
+        assertEquals("999 kB (999999 bytes)", DocumentPropertiesParser.parseFileSize(999999));
+    }
+
+    @Test
+    public void parseFileSizeMegabytes() {
+        assertEquals("1 MB (1000000 bytes)", DocumentPropertiesParser.parseFileSize(1000000));
+        // Rounded up to two decimals
+        assertEquals("1.24 MB (1234567 bytes)", DocumentPropertiesParser.parseFileSize(1234567));
+        assertEquals("4096 MB (4096000000 bytes)", DocumentPropertiesParser.parseFileSize(4096000000L));
+    }
+
+    @Test
+    public void parseFileSizeHuge() {
+        assertEquals("9223372036854.78 MB (9223372036854775807 bytes)",
+                DocumentPropertiesParser.parseFileSize(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void formatProperty() {
+        assertEquals("\nTitle:\nA document\n",
+                DocumentPropertiesParser.formatProperty("Title", "A document"));
+    }
+
+    @Test
+    public void formatPropertyMissing() {
+        assertEquals("\nAuthor:\n-\n", DocumentPropertiesParser.formatProperty("Author", null));
+        assertEquals("\nAuthor:\n-\n", DocumentPropertiesParser.formatProperty("Author", ""));
+    }
+}
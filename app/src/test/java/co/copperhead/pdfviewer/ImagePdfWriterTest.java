@@ -0,0 +1,146 @@
+package co.copperhead.pdfviewer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImagePdfWriterTest {
+    // A4 in points
+    private static final float PAGE_WIDTH = 595.28f;
+    private static final float PAGE_HEIGHT = 841.89f;
+
+    // Pixels that differ across rows and bands, so misplaced rows show up
+    private static class GradientImage implements ImagePdfWriter.Image {
+        private final int mWidth;
+        private final int mHeight;
+
+        GradientImage(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void getRows(int[] pixels, int y, int count) {
+            for (int row = 0; row < count; row++) {
+                for (int x = 0; x < mWidth; x++) {
+                    pixels[row * mWidth + x] = getPixel(x, y + row);
+                }
+            }
+        }
+
+        int getPixel(int x, int y) {
+            return 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8 | (x + y) & 0xff;
+        }
+    }
+
+    @Test
+    public void pagesAreWrittenAsTheyAreAdded() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ImagePdfWriter writer = new ImagePdfWriter(output);
+        int previous = output.size();
+        for (int i = 0; i < 3; i++) {
+            writer.addPage(PAGE_WIDTH, PAGE_HEIGHT, 10, 20, 300, 400, new GradientImage(300, 400));
+            assertTrue(output.size() > previous);
+            previous = output.size();
+        }
+    }
+
+    @Test
+    public void crossReferencesPointAtObjects() throws IOException {
+        final byte[] pdf = write(5, new GradientImage(64, 80));
+        final String text = new String(pdf, StandardCharsets.ISO_8859_1);
+        assertTrue(text.startsWith("%PDF-1.4\n"));
+        assertTrue(text.endsWith("%%EOF\n"));
+
+        final Matcher startxref = Pattern.compile("startxref\n(\\d+)\n").matcher(text);
+        assertTrue(startxref.find());
+        final int xref = Integer.parseInt(startxref.group(1));
+        assertTrue(text.startsWith("xref\n0 ", xref));
+
+        final Matcher entries = Pattern.compile("(\\d{10}) 00000 n \n").matcher(text);
+        int number = 1;
+        int position = xref;
+        while (entries.find(position)) {
+            final int offset = Integer.parseInt(entries.group(1));
+            assertTrue("object " + number, text.startsWith(number + " 0 obj\n", offset));
+            position = entries.end();
+            number++;
+        }
+        // Catalog, page tree and four objects per page
+        assertEquals(2 + 5 * 4, number - 1);
+        assertTrue(text.contains("/Size " + number + " "));
+        assertTrue(text.contains("/Count 5 "));
+    }
+
+    @Test
+    public void imagesAreStoredLosslessly() throws IOException, DataFormatException {
+        // Taller than a band and not a multiple of it
+        final GradientImage image = new GradientImage(37, 150);
+        final byte[] pdf = write(1, image);
+        final String text = new String(pdf, StandardCharsets.ISO_8859_1);
+
+        final int start = text.indexOf("stream\n") + "stream\n".length();
+        final int end = text.indexOf("\nendstream", start);
+        final Matcher length = Pattern.compile("/Length (\\d+) 0 R").matcher(text);
+        assertTrue(length.find());
+        assertTrue(text.contains(length.group(1) + " 0 obj\n" + (end - start) + "\nendobj\n"));
+
+        final Inflater inflater = new Inflater();
+        inflater.setInput(pdf, start, end - start);
+        final byte[] rgb = new byte[image.getWidth() * image.getHeight() * 3];
+        assertEquals(rgb.length, inflater.inflate(rgb));
+        assertTrue(inflater.finished());
+        inflater.end();
+
+        final byte[] expected = new byte[rgb.length];
+        int i = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                final int pixel = image.getPixel(x, y);
+                expected[i++] = (byte) (pixel >> 16);
+                expected[i++] = (byte) (pixel >> 8);
+                expected[i++] = (byte) pixel;
+            }
+        }
+        assertArrayEquals(expected, rgb);
+    }
+
+    @Test
+    public void imagesArePlacedFromTheTopLeft() throws IOException {
+        final String text = new String(write(1, new GradientImage(10, 10)),
+                StandardCharsets.ISO_8859_1);
+        // 841.89 - 20 - 400 from the bottom
+        assertTrue(text.contains("q 300.00 0 0 400.00 10.00 421.89 cm /Im0 Do Q\n"));
+        assertTrue(text.contains("/MediaBox [0 0 595.28 841.89]"));
+    }
+
+    private static byte[] write(int pageCount, ImagePdfWriter.Image image) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ImagePdfWriter writer = new ImagePdfWriter(output);
+        for (int i = 0; i < pageCount; i++) {
+            writer.addPage(PAGE_WIDTH, PAGE_HEIGHT, 10, 20, 300, 400, image);
+        }
+        writer.finish();
+        return output.toByteArray();
+    }
+}
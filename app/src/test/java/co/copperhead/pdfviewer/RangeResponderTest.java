@@ -0,0 +1,222 @@
+package co.copperhead.pdfviewer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RangeResponderTest {
+    // pdf.js requests the document in chunks of this size
+    private static final int CHUNK_SIZE = 65536;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<FileChannel> mChannels = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (final FileChannel channel : mChannels) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void parseRangeBounded() {
+        assertArrayEquals(new long[] { 0, 99 }, RangeResponder.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 100, 100 }, RangeResponder.parseRange("bytes=100-100", 1000));
+        assertArrayEquals(new long[] { 5, 9 }, RangeResponder.parseRange("bytes= 5-9 ", 1000));
+    }
+
+    @Test
+    public void parseRangeOpenEnded() {
+        assertArrayEquals(new long[] { 900, 999 }, RangeResponder.parseRange("bytes=900-", 1000));
+    }
+
+    @Test
+    public void parseRangeSuffix() {
+        assertArrayEquals(new long[] { 900, 999 }, RangeResponder.parseRange("bytes=-100", 1000));
+        // Suffixes longer than the file mean the whole file
+        assertArrayEquals(new long[] { 0, 999 }, RangeResponder.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void parseRangeClampsEnd() {
+        assertArrayEquals(new long[] { 500, 999 }, RangeResponder.parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void parseRangeHugeFile() {
+        final long size = 8L * 1024 * 1024 * 1024;
+        assertArrayEquals(new long[] { size - CHUNK_SIZE, size - 1 },
+                RangeResponder.parseRange("bytes=" + (size - CHUNK_SIZE) + "-" + (size - 1), size));
+    }
+
+    @Test
+    public void parseRangeUnsatisfiable() {
+        assertNull(RangeResponder.parseRange("bytes=1000-1999", 1000));
+        assertNull(RangeResponder.parseRange("bytes=20-10", 1000));
+        assertNull(RangeResponder.parseRange("bytes=0-0", 0));
+    }
+
+    @Test
+    public void parseRangeMalformed() {
+        assertNull(RangeResponder.parseRange("items=0-99", 1000));
+        assertNull(RangeResponder.parseRange("bytes=0-99,200-299", 1000));
+        assertNull(RangeResponder.parseRange("bytes=99", 1000));
+        assertNull(RangeResponder.parseRange("bytes=a-b", 1000));
+        assertNull(RangeResponder.parseRange("bytes=-", 1000));
+        assertNull(RangeResponder.parseRange("bytes=99999999999999999999-", 1000));
+    }
+
+    @Test
+    public void respondWithoutRange() throws IOException {
+        for (final File file : SampleCorpus.get(mFolder.newFolder())) {
+            final byte[] expected = Files.readAllBytes(file.toPath());
+            for (final RangeResponder responder : open(file)) {
+                final RangeResponder.Response response = responder.respond(null);
+                assertEquals(200, response.status);
+                assertEquals("bytes", response.headers.get("Accept-Ranges"));
+                assertEquals(String.valueOf(expected.length), response.headers.get("Content-Length"));
+                assertArrayEquals(expected, readFully(response.data));
+            }
+        }
+    }
+
+    @Test
+    public void respondWithChunks() throws IOException {
+        for (final File file : SampleCorpus.get(mFolder.newFolder())) {
+            final byte[] expected = Files.readAllBytes(file.toPath());
+            for (final RangeResponder responder : open(file)) {
+                // Chunk by chunk, the way the pdf.js range loader reads a document
+                final ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+                for (long start = 0; start < expected.length; start += CHUNK_SIZE) {
+                    final long end = Math.min(start + CHUNK_SIZE, expected.length) - 1;
+                    final RangeResponder.Response response =
+                            responder.respond("bytes=" + start + "-" + end);
+                    assertEquals(206, response.status);
+                    assertEquals(String.valueOf(end - start + 1), response.headers.get("Content-Length"));
+                    assertEquals("bytes " + start + "-" + end + "/" + expected.length,
+                            response.headers.get("Content-Range"));
+                    reassembled.write(readFully(response.data));
+                }
+                assertArrayEquals(expected, reassembled.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void respondWithSuffix() throws IOException {
+        for (final File file : SampleCorpus.get(mFolder.newFolder())) {
+            final byte[] expected = Files.readAllBytes(file.toPath());
+            for (final RangeResponder responder : open(file)) {
+                final RangeResponder.Response response = responder.respond("bytes=-1024");
+                assertEquals(206, response.status);
+                final int start = Math.max(0, expected.length - 1024);
+                assertArrayEquals(Arrays.copyOfRange(expected, start, expected.length),
+                        readFully(response.data));
+            }
+        }
+    }
+
+    @Test
+    public void respondUnsatisfiable() throws IOException {
+        for (final File file : SampleCorpus.get(mFolder.newFolder())) {
+            for (final RangeResponder responder : open(file)) {
+                final RangeResponder.Response response =
+                        responder.respond("bytes=" + file.length() + "-");
+                assertEquals(416, response.status);
+                assertEquals("bytes */" + file.length(), response.headers.get("Content-Range"));
+                assertEquals(0, readFully(response.data).length);
+            }
+        }
+    }
+
+    @Test
+    public void fetchedSizeCountsEachBlockOnce() throws IOException {
+        final File file = SampleCorpus.get(mFolder.newFolder()).get(2);
+        for (final RangeResponder responder : open(file)) {
+            assertEquals(0, responder.getFetchedSize());
+            readFully(responder.respond("bytes=0-" + (CHUNK_SIZE - 1)).data);
+            readFully(responder.respond("bytes=0-" + (CHUNK_SIZE - 1)).data);
+            assertEquals(CHUNK_SIZE, responder.getFetchedSize());
+            // Straddles the second and third blocks
+            readFully(responder.respond("bytes=" + (CHUNK_SIZE + 100) + "-" +
+                    (2 * CHUNK_SIZE + 100)).data);
+            assertEquals(3 * CHUNK_SIZE, responder.getFetchedSize());
+            readFully(responder.respond("bytes=" + file.length() + "-").data);
+            assertEquals(3 * CHUNK_SIZE, responder.getFetchedSize());
+        }
+    }
+
+    @Test
+    public void fetchedSizeCountsOnlyWhatIsRead() throws IOException {
+        final File file = SampleCorpus.get(mFolder.newFolder()).get(2);
+        for (final RangeResponder responder : open(file)) {
+            // pdf.js aborts its opening full request once it sees Accept-Ranges
+            final InputStream aborted = responder.respond(null).data;
+            assertEquals(1024, aborted.read(new byte[1024]));
+            aborted.close();
+            assertEquals(CHUNK_SIZE, responder.getFetchedSize());
+
+            // Responses nobody reads cost nothing
+            responder.respond("bytes=" + CHUNK_SIZE + "-" + (4 * CHUNK_SIZE - 1));
+            assertEquals(CHUNK_SIZE, responder.getFetchedSize());
+
+            readFully(responder.respond(null).data);
+            assertEquals(file.length(), responder.getFetchedSize());
+        }
+    }
+
+    @Test
+    public void concurrentResponsesDontShareAPosition() throws IOException {
+        final File file = SampleCorpus.get(mFolder.newFolder()).get(1);
+        final byte[] expected = Files.readAllBytes(file.toPath());
+        for (final RangeResponder responder : open(file)) {
+            final InputStream first = responder.respond("bytes=0-99").data;
+            final InputStream second = responder.respond("bytes=100-199").data;
+            final byte[] firstHalf = new byte[50];
+            assertEquals(50, first.read(firstHalf));
+            assertArrayEquals(Arrays.copyOfRange(expected, 100, 200), readFully(second));
+            final byte[] rest = readFully(first);
+            assertArrayEquals(Arrays.copyOfRange(expected, 0, 50), firstHalf);
+            assertArrayEquals(Arrays.copyOfRange(expected, 50, 100), rest);
+        }
+    }
+
+    // A responder reading through the channel and one reading from a mapping, as
+    // DocumentRangeServer uses for documents from providers and local copies
+    private List<RangeResponder> open(File file) throws IOException {
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        mChannels.add(channel);
+        final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return Arrays.asList(new RangeResponder(channel, channel.size(), null),
+                new RangeResponder(channel, channel.size(), mapping));
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
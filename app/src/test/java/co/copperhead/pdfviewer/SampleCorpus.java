@@ -0,0 +1,149 @@
+package co.copperhead.pdfviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sample documents for tests and benchmarks. The PDFs in the directory named by the
+ * pdfviewer.corpus system property are used when it is set, otherwise documents of a few
+ * sizes are generated, so nothing has to be checked in or downloaded.
+ */
+public final class SampleCorpus {
+    public static final String PROPERTY = "pdfviewer.corpus";
+
+    // Page counts of the generated documents, from a few kilobytes to a few megabytes
+    private static final int[] PAGE_COUNTS = { 1, 40, 800 };
+    private static final int LINES_PER_PAGE = 40;
+
+    private SampleCorpus() {
+    }
+
+    /**
+     * Returns the documents of the corpus ordered by size, generating them in the directory
+     * if no corpus is configured.
+     */
+    public static List<File> get(File directory) throws IOException {
+        final String configured = System.getProperty(PROPERTY);
+        if (configured != null && !configured.isEmpty()) {
+            final File[] files = new File(configured).listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.toLowerCase(Locale.ROOT).endsWith(".pdf");
+                }
+            });
+            if (files == null || files.length == 0) {
+                throw new IOException("no PDFs in " + configured);
+            }
+            final List<File> corpus = new ArrayList<>(Arrays.asList(files));
+            Collections.sort(corpus, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.length(), b.length());
+                }
+            });
+            return corpus;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create " + directory);
+        }
+        final List<File> corpus = new ArrayList<>();
+        for (final int pageCount : PAGE_COUNTS) {
+            final File file = new File(directory, "sample-" + pageCount + ".pdf");
+            if (!file.isFile()) {
+                try (OutputStream output = new FileOutputStream(file)) {
+                    output.write(generate(pageCount));
+                }
+            }
+            corpus.add(file);
+        }
+        return corpus;
+    }
+
+    /**
+     * Builds a valid PDF with the given number of pages of text and an accurate xref table.
+     */
+    public static byte[] generate(int pageCount) {
+        final Writer writer = new Writer();
+        // Binary marker comment so tools treat the file as binary
+        writer.write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+
+        // Objects 1 and 2 are the catalog and page tree, 3 the font, then a page and its
+        // content stream for each page
+        final int objectCount = 3 + pageCount * 2;
+        final long[] offsets = new long[objectCount + 1];
+
+        offsets[1] = writer.size();
+        writer.write("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+        final StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pageCount; i++) {
+            kids.append(4 + i * 2).append(" 0 R ");
+        }
+        offsets[2] = writer.size();
+        writer.write("2 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + pageCount +
+                " >>\nendobj\n");
+
+        offsets[3] = writer.size();
+        writer.write("3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>\nendobj\n");
+
+        for (int i = 0; i < pageCount; i++) {
+            final int page = 4 + i * 2;
+            final int contents = page + 1;
+            offsets[page] = writer.size();
+            writer.write(page + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842]" +
+                    " /Resources << /Font << /F1 3 0 R >> >> /Contents " + contents +
+                    " 0 R >>\nendobj\n");
+
+            final StringBuilder stream = new StringBuilder("BT /F1 11 Tf 56 800 Td 14 TL\n");
+            for (int line = 0; line < LINES_PER_PAGE; line++) {
+                stream.append("(Page ").append(i + 1).append(" line ").append(line + 1)
+                        .append(": the quick brown fox jumps over the lazy dog) '\n");
+            }
+            stream.append("ET\n");
+            offsets[contents] = writer.size();
+            writer.write(contents + " 0 obj\n<< /Length " + stream.length() + " >>\nstream\n" +
+                    stream + "endstream\nendobj\n");
+        }
+
+        final long xref = writer.size();
+        final StringBuilder table = new StringBuilder("xref\n0 " + (objectCount + 1) +
+                "\n0000000000 65535 f \n");
+        for (int i = 1; i <= objectCount; i++) {
+            table.append(String.format(Locale.ROOT, "%010d 00000 n \n", offsets[i]));
+        }
+        writer.write(table.toString());
+        writer.write("trailer\n<< /Size " + (objectCount + 1) + " /Root 1 0 R" +
+                " /Info << /Title (Sample " + pageCount + ") /CreationDate (D:20171001120000+02'00') >>" +
+                " >>\nstartxref\n" + xref + "\n%%EOF\n");
+        return writer.toByteArray();
+    }
+
+    private static class Writer {
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+        void write(String text) {
+            final byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            mOutput.write(bytes, 0, bytes.length);
+        }
+
+        long size() {
+            return mOutput.size();
+        }
+
+        byte[] toByteArray() {
+            return mOutput.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package co.copperhead.pdfviewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work behind the document properties dialog: dates in each form documents use, sizes and
+ * the assembled property list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentPropertiesBenchmark {
+    private static final String[] DATES = {
+        "D:20171001120000+02'00'",
+        "D:20171001120000-05'30'",
+        "D:20171001120000Z",
+        "D:201710011200",
+        "D:2017",
+        "20171001120000",
+        "D:2017AB",
+    };
+
+    private static final long[] SIZES = { 999, 123456, 98765432, Long.MAX_VALUE };
+
+    private static final String[] NAMES = {
+        "File name", "File size", "Pages", "Title", "Author", "Subject", "Keywords",
+        "Creation date", "Modify date", "Producer", "Creator", "PDF version",
+    };
+
+    @Benchmark
+    public void parseDate(Blackhole blackhole) {
+        for (final String date : DATES) {
+            blackhole.consume(DocumentPropertiesParser.parseDate(date, Locale.US));
+        }
+    }
+
+    @Benchmark
+    public void parseFileSize(Blackhole blackhole) {
+        for (final long size : SIZES) {
+            blackhole.consume(DocumentPropertiesParser.parseFileSize(size));
+        }
+    }
+
+    @Benchmark
+    public String formatProperties() {
+        final StringBuilder properties = new StringBuilder();
+        for (int i = 0; i < NAMES.length; i++) {
+            properties.append(DocumentPropertiesParser.formatProperty(NAMES[i],
+                    i % 4 == 0 ? null : "Value of " + NAMES[i]));
+        }
+        return properties.toString();
+    }
+}
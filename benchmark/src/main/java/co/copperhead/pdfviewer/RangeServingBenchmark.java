@@ -0,0 +1,113 @@
+package co.copperhead.pdfviewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving a document to pdf.js over range requests, through the channel as for documents from
+ * providers and through a mapping as for local copies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeServingBenchmark {
+    // pdf.js requests the document in chunks of this size
+    private static final int CHUNK_SIZE = 65536;
+
+    // Picks from the corpus ordered by size
+    @Param({ "smallest", "median", "largest" })
+    public String document;
+
+    @Param({ "channel", "mapped" })
+    public String source;
+
+    private File mDirectory;
+    private FileChannel mChannel;
+    private RangeResponder mResponder;
+    private final byte[] mBuffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("corpus").toFile();
+        final List<File> corpus = SampleCorpus.get(mDirectory);
+        final File file;
+        if ("smallest".equals(document)) {
+            file = corpus.get(0);
+        } else if ("median".equals(document)) {
+            file = corpus.get(corpus.size() / 2);
+        } else {
+            file = corpus.get(corpus.size() - 1);
+        }
+        mChannel = new FileInputStream(file).getChannel();
+        mResponder = new RangeResponder(mChannel, mChannel.size(), "mapped".equals(source) ?
+                mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size()) : null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mChannel.close();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * What opening a document costs: the first chunk and the trailer at the end.
+     */
+    @Benchmark
+    public long open() throws IOException {
+        return drain(mResponder.respond("bytes=0-" + (CHUNK_SIZE - 1))) +
+                drain(mResponder.respond("bytes=-" + CHUNK_SIZE));
+    }
+
+    /**
+     * The whole document chunk by chunk, as pdf.js fetches it in the background.
+     */
+    @Benchmark
+    public long sequentialChunks() throws IOException {
+        final long size = mResponder.getSize();
+        long total = 0;
+        for (long start = 0; start < size; start += CHUNK_SIZE) {
+            total += drain(mResponder.respond("bytes=" + start + "-" + (start + CHUNK_SIZE - 1)));
+        }
+        return total;
+    }
+
+    private long drain(RangeResponder.Response response) throws IOException {
+        long total = 0;
+        try (InputStream data = response.data) {
+            int read;
+            while ((read = data.read(mBuffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}